@@ -42,6 +42,10 @@ android {
         checkReleaseBuilds = true
         disable += "MissingTranslation"
     }
+    testOptions {
+        // The pure Java units log through android.util.Log, which is a stub in unit tests.
+        unitTests.isReturnDefaultValues = true
+    }
     namespace = "org.asteroidos.sync"
 }
 
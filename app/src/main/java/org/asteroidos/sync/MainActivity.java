@@ -78,7 +78,8 @@ import static android.os.ParcelUuid.fromString;
 public class MainActivity extends AppCompatActivity implements DeviceListFragment.OnDefaultDeviceSelectedListener,
         DeviceListFragment.OnScanRequestedListener, DeviceDetailFragment.OnDefaultDeviceUnselectedListener,
         DeviceDetailFragment.OnConnectRequestedListener, DeviceDetailFragment.OnAppSettingsClickedListener,
-        DeviceDetailFragment.OnWeatherSettingsClickedListener, DeviceDetailFragment.OnUpdateListener {
+        DeviceDetailFragment.OnWeatherSettingsClickedListener, DeviceDetailFragment.OnUpdateListener,
+        DeviceDetailFragment.OnMetricsRequestedListener {
 
     public static final String PREFS_NAME = "MainPreferences";
     public static final String PREFS_DEFAULT_MAC_ADDR = "defaultMacAddress";
@@ -246,6 +247,17 @@ public class MainActivity extends AppCompatActivity implements DeviceListFragmen
         }
     }
 
+    @Override
+    public void onMetricsRequested() {
+        try {
+            Message msg = Message.obtain(null, SynchronizationService.MSG_REQUEST_METRICS);
+            msg.replyTo = mDeviceDetailMessenger;
+            if (mSyncServiceMessenger != null)
+                mSyncServiceMessenger.send(msg);
+        } catch (RemoteException ignored) {
+        }
+    }
+
     @Override
     public void onConnectRequested() {
         if (mScanner != null)
@@ -370,6 +382,11 @@ public class MainActivity extends AppCompatActivity implements DeviceListFragmen
             mDetailFragment.setBatteryPercentage(percentage);
     }
 
+    private void handleSetMetrics(String metrics) {
+        if (mDetailFragment != null)
+            mDetailFragment.showMetrics(metrics);
+    }
+
     @Override
     public void onScanRequested() {
         btEnableAndScan();
@@ -470,6 +487,9 @@ public class MainActivity extends AppCompatActivity implements DeviceListFragmen
                 case SynchronizationService.MSG_SET_BATTERY_PERCENTAGE:
                     mActivity.handleSetBatteryPercentage(msg.arg1);
                     break;
+                case SynchronizationService.MSG_SET_METRICS:
+                    mActivity.handleSetMetrics((String) msg.obj);
+                    break;
                 default:
                     super.handleMessage(msg);
             }
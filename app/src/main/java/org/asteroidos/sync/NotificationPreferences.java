@@ -20,17 +20,33 @@ package org.asteroidos.sync;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.AtomicFile;
+import android.util.Log;
 
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class NotificationPreferences {
+    public static final String TAG = NotificationPreferences.class.toString();
+
     public enum NotificationOption {
         DEFAULT(0),
         NO_NOTIFICATIONS(1),
@@ -61,56 +77,205 @@ public class NotificationPreferences {
     }
 
     private static final String PREFS_NAME = "NotificationPreferences";
+    // Where the options were kept as JSON before they moved to OPTIONS_FILE.
     private static final String PREFS_NOTIFICATIONS = "notifications";
     private static final String PREFS_SEEN_PACKAGES = "seenPackages";
+    private static final Gson GSON = new Gson();
+
+    // Package names with the value of their option, see writeOptions().
+    private static final String OPTIONS_FILE = "notification_options.bin";
+    private static final int OPTIONS_FILE_VERSION = 1;
+    // Changes within this window are written at once, the app list changes options while scrolling.
+    private static final long WRITE_DELAY_MS = 2000;
+    private static final Handler sHandler = new Handler(Looper.getMainLooper());
+    private static final ExecutorService sWriter = Executors.newSingleThreadExecutor();
+    private static final Runnable sFlush = NotificationPreferences::flush;
+
+    // Parsed preferences, they are looked up for every notification. Null until first used and
+    // after the preferences changed, guarded by the class lock.
+    private static SharedPreferences sPrefs;
+    private static AtomicFile sOptionsFile;
+    private static Map<String, NotificationOption> sOptions;
+    // Whether sOptions has changes that are not written yet.
+    private static boolean sOptionsDirty = false;
+    // Whether the options still have to be dropped from the JSON once sOptions is written.
+    private static boolean sJsonPending = false;
+    private static ArrayList<String> sSeenPackages;
+    private static HashSet<String> sSeenPackageSet;
+    // SharedPreferences only keeps a weak reference to its listeners.
+    private static final SharedPreferences.OnSharedPreferenceChangeListener sListener = (prefs, key) -> {
+        synchronized (NotificationPreferences.class) {
+            // The key is null when the preferences were cleared.
+            if (key == null || key.equals(PREFS_SEEN_PACKAGES)) {
+                sSeenPackages = null;
+                sSeenPackageSet = null;
+            }
+        }
+    };
 
     private static Map<String, NotificationOption> getOptionMap(Context context) {
-        SharedPreferences prefs = getPrefs(context);
+        if (sOptions == null) {
+            sOptionsFile = new AtomicFile(new File(context.getApplicationContext().getFilesDir(), OPTIONS_FILE));
+            SharedPreferences prefs = getPrefs(context);
+            if (sOptionsFile.getBaseFile().exists())
+                sOptions = readOptions(sOptionsFile);
+            if (sOptions == null) {
+                // A file that could not be read is kept aside instead of being overwritten.
+                File file = sOptionsFile.getBaseFile();
+                if (file.exists() && !file.renameTo(new File(file.getPath() + ".bad")))
+                    Log.w(TAG, "Could not keep the unreadable notification options aside");
+                // The JSON is only dropped once the file holds the options.
+                sOptions = readJsonOptions(prefs);
+                sJsonPending = prefs.contains(PREFS_NOTIFICATIONS);
+                markDirty();
+            }
+        }
+        return sOptions;
+    }
+
+    /**
+     * @return the options in the format before OPTIONS_FILE, empty once they were migrated
+     */
+    private static HashMap<String, NotificationOption> readJsonOptions(SharedPreferences prefs) {
         String notificationPrefsAsString = prefs.getString(PREFS_NOTIFICATIONS, "{}");
-        Gson gson = new Gson();
-        Type notificationPrefs = new TypeToken<Map<String, NotificationOption>>(){}.getType();
-        return gson.fromJson(notificationPrefsAsString, notificationPrefs);
+        Type notificationPrefs = new TypeToken<HashMap<String, NotificationOption>>(){}.getType();
+        return GSON.fromJson(notificationPrefsAsString, notificationPrefs);
+    }
+
+    /**
+     * @return the options, or null if the file could not be read completely
+     */
+    private static HashMap<String, NotificationOption> readOptions(AtomicFile file) {
+        HashMap<String, NotificationOption> options = new HashMap<>();
+        try (DataInputStream in = new DataInputStream(file.openRead())) {
+            if (in.readByte() != OPTIONS_FILE_VERSION)
+                throw new IOException("Unknown version");
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String packageName = in.readUTF();
+                int value = in.readByte();
+                try {
+                    options.put(packageName, NotificationOption.fromInt(value));
+                } catch (IllegalArgumentException ignored) {
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read the notification options", e);
+            return null;
+        }
+        return options;
+    }
+
+    /**
+     * Writes a version byte and the number of options, then the package name in modified UTF-8
+     * and the value of the option as a byte for each option.
+     *
+     * @return whether the file was written
+     */
+    private static boolean writeOptions(AtomicFile file, Map<String, NotificationOption> options) {
+        FileOutputStream stream = null;
+        try {
+            stream = file.startWrite();
+            DataOutputStream out = new DataOutputStream(stream);
+            out.writeByte(OPTIONS_FILE_VERSION);
+            out.writeInt(options.size());
+            for (Map.Entry<String, NotificationOption> option : options.entrySet()) {
+                out.writeUTF(option.getKey());
+                out.writeByte(option.getValue().asInt());
+            }
+            out.flush();
+            file.finishWrite(stream);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write the notification options", e);
+            if (stream != null)
+                file.failWrite(stream);
+            return false;
+        }
+    }
+
+    private static void markDirty() {
+        if (!sOptionsDirty) {
+            sOptionsDirty = true;
+            sHandler.postDelayed(sFlush, WRITE_DELAY_MS);
+        }
+    }
+
+    /**
+     * Writes changed options now instead of after the write delay. Call this when the user may
+     * be leaving the app.
+     */
+    public static synchronized void flush() {
+        sHandler.removeCallbacks(sFlush);
+        if (!sOptionsDirty)
+            return;
+        sOptionsDirty = false;
+        final AtomicFile file = sOptionsFile;
+        final HashMap<String, NotificationOption> options = new HashMap<>(sOptions);
+        final SharedPreferences jsonPrefs = sJsonPending ? sPrefs : null;
+        sJsonPending = false;
+        sWriter.execute(() -> {
+            boolean written = writeOptions(file, options);
+            if (jsonPrefs == null)
+                return;
+            if (written) {
+                jsonPrefs.edit().remove(PREFS_NOTIFICATIONS).apply();
+            } else {
+                synchronized (NotificationPreferences.class) {
+                    sJsonPending = true;
+                }
+            }
+        });
+    }
+
+    private static void loadSeenPackages(Context context) {
+        if (sSeenPackages == null) {
+            String asString = getPrefs(context).getString(PREFS_SEEN_PACKAGES, "[]");
+            sSeenPackages = new ArrayList<>(Arrays.asList(GSON.fromJson(asString, String[].class)));
+            sSeenPackageSet = new HashSet<>(sSeenPackages);
+        }
     }
 
     private static SharedPreferences getPrefs(Context context) {
-        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        if (sPrefs == null) {
+            sPrefs = context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+            sPrefs.registerOnSharedPreferenceChangeListener(sListener);
+        }
+        return sPrefs;
     }
 
-    public static NotificationOption getNotificationPreferenceForApp(Context context, String packageName) {
+    public static synchronized NotificationOption getNotificationPreferenceForApp(Context context, String packageName) {
         NotificationOption value = getOptionMap(context).get(packageName);
         return value == null ? NotificationOption.DEFAULT : value;
     }
 
-    public static void saveNotificationPreferenceForApp(Context context, String packageName, int value) {
+    public static synchronized void saveNotificationPreferenceForApp(Context context, String packageName, int value) {
         Map<String,NotificationOption> map = getOptionMap(context);
         NotificationOption option = NotificationOption.fromInt(value);
 
         // this function gets fired a lot on scroll, don't save defaults if there's nothing set
         if (map.get(packageName) == null && option == NotificationOption.DEFAULT)
             return;
+        if (map.get(packageName) == option)
+            return;
 
         map.put(packageName, option);
-        SharedPreferences.Editor editor = getPrefs(context).edit();
-        String jsonString = new Gson().toJson(map);
-        editor.putString(PREFS_NOTIFICATIONS, jsonString);
-        editor.apply();
+        markDirty();
     }
 
-    public static List<String> seenPackageNames(Context context) {
-        String asString = getPrefs(context).getString(PREFS_SEEN_PACKAGES, "[]");
-        String[] asArray = new Gson().fromJson(asString, String[].class);
-        return Arrays.asList(asArray);
+    public static synchronized List<String> seenPackageNames(Context context) {
+        loadSeenPackages(context);
+        return Collections.unmodifiableList(new ArrayList<>(sSeenPackages));
     }
 
-    public static void putPackageToSeen(Context context, String packageName) {
-        List<String> list = seenPackageNames(context);
-        if (list.contains(packageName))
+    public static synchronized void putPackageToSeen(Context context, String packageName) {
+        loadSeenPackages(context);
+        if (!sSeenPackageSet.add(packageName))
             return;
-        ArrayList<String> array = new ArrayList<>(list);
-        array.add(packageName);
+        sSeenPackages.add(packageName);
 
         SharedPreferences.Editor editor = getPrefs(context).edit();
-        editor.putString(PREFS_SEEN_PACKAGES, new Gson().toJson(array));
+        editor.putString(PREFS_SEEN_PACKAGES, GSON.toJson(sSeenPackages));
         editor.apply();
     }
 }
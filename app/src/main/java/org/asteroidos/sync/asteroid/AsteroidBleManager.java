@@ -31,57 +31,200 @@ import org.asteroidos.sync.connectivity.IConnectivityService;
 import org.asteroidos.sync.connectivity.IServiceCallback;
 import org.asteroidos.sync.services.SynchronizationService;
 import org.asteroidos.sync.utils.AsteroidUUIDS;
+import org.asteroidos.sync.utils.PooledBuffer;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Objects;
 import java.util.UUID;
 
 import no.nordicsemi.android.ble.BleManager;
 import no.nordicsemi.android.ble.data.Data;
-import no.nordicsemi.android.ble.data.DataSplitter;
 
 public class AsteroidBleManager extends BleManager {
-    // Android's BluetoothGatt.writeCharacteristic() rejects any value longer
-    // than the maximum GATT attribute length (512 bytes) since Android 13,
-    // throwing IllegalArgumentException. The default MTU-based splitter chunks
-    // at MTU - 3 bytes, which is 514 when the system negotiates the maximum MTU
-    // of 517 (as on the Pixel 8), exceeding the limit and crashing the app on
-    // the first long notification. Cap each chunk at 512 bytes regardless of
-    // the negotiated MTU. The watch reassembles the message from the chunks, so
-    // a smaller chunk size has no effect other than splitting into more writes.
-    private static final int MAX_ATTRIBUTE_LENGTH = 512;
-
-    private static final DataSplitter CAPPED_SPLITTER = (message, index, maxLength) -> {
-        final int size = Math.min(maxLength, MAX_ATTRIBUTE_LENGTH);
-        final int offset = index * size;
-        if (offset >= message.length)
-            return null;
-        final int length = Math.min(size, message.length - offset);
-        final byte[] chunk = new byte[length];
-        System.arraycopy(message, offset, chunk, 0, length);
-        return chunk;
-    };
-
     public static final String TAG = AsteroidBleManager.class.toString();
     @Nullable
     public BluetoothGattCharacteristic batteryCharacteristic;
     final SynchronizationService mSynchronizationService;
     final ArrayList<BluetoothGattService> mGattServices;
     public final HashMap<UUID, IServiceCallback> recvCallbacks;
+    public final HashMap<UUID, IServiceCallback> readCallbacks;
+    final HashMap<UUID, BluetoothGattCharacteristic> mReadCharacteristics;
     public HashMap<UUID, BluetoothGattCharacteristic> sendingCharacteristics;
+    final WriteScheduler mScheduler;
+    // Number of writes without response that may be handed to the GATT queue at once. A credit
+    // is taken when a write is passed on and given back when the stack took its last chunk, so
+    // the link never waits for the next write to be prepared.
+    private static final int BULK_WINDOW = 4;
+    // Writes that were handed to the GATT queue and did not finish yet. Acknowledged writes are
+    // passed on one at a time, so that the scheduler can still reorder everything behind them.
+    private int mInFlight = 0;
+    private int mAckInFlight = 0;
+    // Incremented by abort(), completions of writes from before are ignored.
+    private int mGeneration = 0;
+    // Characteristics in WriteMode.BULK that support writes without response.
+    private final HashSet<UUID> mBulkCharacteristics = new HashSet<>();
+    private long mBulkStart;
+    private long mBulkBytes;
+    private long mBulkThroughput = 0;
+    final LinkPolicy mLinkPolicy;
+    final TransportMetrics mMetrics;
 
     public AsteroidBleManager(@NonNull final Context context, SynchronizationService syncService) {
         super(context);
         mSynchronizationService = syncService;
         mGattServices = new ArrayList<>();
         recvCallbacks = new HashMap<>();
+        readCallbacks = new HashMap<>();
+        mReadCharacteristics = new HashMap<>();
+        mScheduler = new WriteScheduler();
+        mLinkPolicy = new LinkPolicy(this::applyLinkState);
+        mMetrics = new TransportMetrics();
+    }
+
+    public final void send(UUID characteristic, byte[] data, IConnectivityService service, IConnectivityService.Priority priority) {
+        mScheduler.enqueue(new PendingWrite(characteristic, data, service, priority));
+        sendNext();
+    }
+
+    public final void send(UUID characteristic, byte[] data, IConnectivityService service, IConnectivityService.Priority priority,
+                           String dedupeKey, long ttl) {
+        mScheduler.enqueue(new PendingWrite(characteristic, data, service, priority, dedupeKey, ttl));
+        sendNext();
+    }
+
+    /**
+     * Sends the content of the buffer, which is recycled once the write is done.
+     */
+    public final void send(UUID characteristic, PooledBuffer data, IConnectivityService service, IConnectivityService.Priority priority,
+                           String dedupeKey, long ttl) {
+        mScheduler.enqueue(new PendingWrite(characteristic, data, service, priority, dedupeKey, ttl));
+        sendNext();
+    }
+
+    /**
+     * Keeps the link at high priority until the service clears the hint again.
+     */
+    public final void setBulkTransfer(IConnectivityService service, boolean bulk) {
+        mLinkPolicy.setBulkTransfer(service, bulk);
     }
 
-    public final void send(UUID characteristic, byte[] data) {
-        writeCharacteristic(sendingCharacteristics.get(characteristic), data,
-                Objects.requireNonNull(sendingCharacteristics.get(characteristic)).getWriteType()).split(CAPPED_SPLITTER).enqueue();
+    private void applyLinkState(LinkPolicy.LinkState state) {
+        if (!isReady())
+            return;
+        requestConnectionPriority(state.connectionPriority)
+                // Only called on Android 8 and later.
+                .with((device, interval, latency, timeout) -> log(Log.INFO, "Link " + state
+                        + ": interval " + interval * 1.25 + "ms, latency " + latency
+                        + ", timeout " + timeout * 10 + "ms"))
+                .fail((device, status) -> log(Log.WARN, "Connection priority " + state + " not set: " + status))
+                .enqueue();
+    }
+
+    public final TransportMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * @return a report of the metrics, including the writes that are queued right now
+     */
+    public final String dumpMetrics() {
+        StringBuilder sb = new StringBuilder(mMetrics.dump(mScheduler.getQueueDepths()));
+        sb.append("\nQueued per priority:");
+        for (IConnectivityService.Priority priority : IConnectivityService.Priority.values())
+            sb.append(' ').append(priority).append(' ').append(mScheduler.getQueueDepth(priority));
+        return sb.append('\n').toString();
+    }
+
+    /**
+     * @return the throughput of the last bulk transfer in bytes per second
+     */
+    public final long getBulkThroughput() {
+        return mBulkThroughput;
+    }
+
+    private void sendNext() {
+        while (true) {
+            PendingWrite write;
+            BluetoothGattCharacteristic characteristic;
+            boolean bulk;
+            int generation;
+            synchronized (mScheduler) {
+                if (mInFlight > 0 && (mAckInFlight > 0 || mInFlight >= BULK_WINDOW))
+                    return;
+                while (true) {
+                    write = mScheduler.poll();
+                    if (write == null)
+                        return;
+                    characteristic = sendingCharacteristics == null ? null : sendingCharacteristics.get(write.characteristic);
+                    if (characteristic != null)
+                        break;
+                    Log.w(TAG, "Dropping write to unknown characteristic " + write.characteristic);
+                    mMetrics.recordWrite(write.characteristic, write.length, 0, System.nanoTime() - write.enqueueTime, false);
+                    write.recycle();
+                }
+                bulk = mBulkCharacteristics.contains(write.characteristic);
+                if (bulk) {
+                    if (mInFlight == 0) {
+                        mBulkStart = System.nanoTime();
+                        mBulkBytes = 0;
+                    }
+                    mBulkBytes += write.length;
+                } else {
+                    mAckInFlight++;
+                }
+                mInFlight++;
+                generation = mGeneration;
+            }
+            mLinkPolicy.onTraffic();
+            startWrite(characteristic, write, bulk, generation);
+        }
+    }
+
+    private void startWrite(BluetoothGattCharacteristic characteristic, PendingWrite write, boolean bulk, int generation) {
+        final ChunkSplitter splitter = new ChunkSplitter();
+        final int writeType = bulk ? BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE : characteristic.getWriteType();
+        writeCharacteristic(characteristic, write.data, 0, write.length, writeType)
+                .split(splitter::chunk)
+                .done(device -> mMetrics.recordWrite(write.characteristic, write.length,
+                        splitter.getChunkCount(), System.nanoTime() - write.enqueueTime, true))
+                .fail((device, status) -> {
+                    mMetrics.recordWrite(write.characteristic, write.length,
+                            splitter.getChunkCount(), System.nanoTime() - write.enqueueTime, false);
+                    // The watch went away or the queue was aborted while the write was in the
+                    // GATT queue, keep it for later.
+                    boolean aborted;
+                    synchronized (mScheduler) {
+                        aborted = generation != mGeneration;
+                    }
+                    if (aborted || !isConnected())
+                        mSynchronizationService.stash(write);
+                })
+                .then(device -> {
+                    splitter.recycle();
+                    write.recycle();
+                    synchronized (mScheduler) {
+                        if (generation != mGeneration)
+                            return;
+                        mInFlight--;
+                        if (!bulk)
+                            mAckInFlight--;
+                        else if (mInFlight == mAckInFlight)
+                            reportBulkThroughput();
+                    }
+                    sendNext();
+                })
+                .enqueue();
+    }
+
+    private void reportBulkThroughput() {
+        final long elapsed = System.nanoTime() - mBulkStart;
+        if (elapsed <= 0)
+            return;
+        mBulkThroughput = mBulkBytes * 1000000000L / elapsed;
+        Log.d(TAG, "Bulk transfer of " + mBulkBytes + " bytes at " + mBulkThroughput + " bytes/s");
     }
 
     @NonNull
@@ -90,17 +233,39 @@ public class AsteroidBleManager extends BleManager {
         return new AsteroidBleManagerGattCallback() {
             @Override
             protected void onServicesInvalidated() {
+                stashPending();
                 mSynchronizationService.unsyncServices();
+                mLinkPolicy.onDisconnected();
+                synchronized (mScheduler) {
+                    mBulkCharacteristics.clear();
+                }
                 batteryCharacteristic = null;
+                mReadCharacteristics.clear();
                 mGattServices.clear();
             }
         };
     }
 
     public final void abort() {
+        stashPending();
         cancelQueue();
     }
 
+    /**
+     * Moves the writes that were not handed to the GATT queue yet to the outbox.
+     */
+    private void stashPending() {
+        synchronized (mScheduler) {
+            mScheduler.drain().forEach(write -> {
+                mSynchronizationService.stash(write);
+                write.recycle();
+            });
+            mInFlight = 0;
+            mAckInFlight = 0;
+            mGeneration++;
+        }
+    }
+
     public final void setBatteryLevel(Data data) {
         BatteryLevelEvent batteryLevelEvent = new BatteryLevelEvent();
         batteryLevelEvent.battery = Objects.requireNonNull(data.getByte(0)).intValue();
@@ -113,6 +278,17 @@ public class AsteroidBleManager extends BleManager {
 
     public final void readCharacteristics() {
         readCharacteristic(batteryCharacteristic).with(((device, data) -> setBatteryLevel(data))).enqueue();
+        readCallbacks.forEach((uuid, callback) -> {
+            BluetoothGattCharacteristic characteristic = mReadCharacteristics.get(uuid);
+            if (characteristic == null) {
+                callback.call(null);
+                return;
+            }
+            readCharacteristic(characteristic)
+                    .with((device, data) -> callback.call(data.getValue()))
+                    .fail((device, status) -> callback.call(null))
+                    .enqueue();
+        });
     }
 
     private abstract class AsteroidBleManagerGattCallback extends BleManagerGattCallback {
@@ -143,17 +319,46 @@ public class AsteroidBleManager extends BleManager {
                     if (direction == IConnectivityService.Direction.TO_WATCH)
                         sendUuids.add(uuid);
                 });
+                HashMap<UUID, IConnectivityService.WriteMode> writeModes = service.getCharacteristicWriteModes();
+                writeModes.forEach(mScheduler::setWriteMode);
+                mScheduler.setWeight(service, service.getWeight());
                 Log.d(TAG, "UUID " + sendUuids);
 
                 for (UUID uuid : sendUuids) {
                     BluetoothGattCharacteristic characteristic = bluetoothGattService.getCharacteristic(uuid);
                     sendingCharacteristics.put(uuid, characteristic);
                     bluetoothGattService.addCharacteristic(characteristic);
+                    if (writeModes.get(uuid) != IConnectivityService.WriteMode.BULK)
+                        continue;
+                    // Older watches only accept acknowledged writes, those fall back to them.
+                    if (characteristic != null && (characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0) {
+                        synchronized (mScheduler) {
+                            mBulkCharacteristics.add(uuid);
+                        }
+                    } else
+                        Log.i(TAG, "No write without response on " + uuid + ", using acknowledged writes");
                 }
+                readCallbacks.keySet().forEach(uuid -> {
+                    BluetoothGattCharacteristic characteristic = bluetoothGattService.getCharacteristic(uuid);
+                    if (characteristic != null)
+                        mReadCharacteristics.put(uuid, characteristic);
+                });
                 recvCallbacks.forEach((characteristic, callback) -> {
                     BluetoothGattCharacteristic characteristic1 = bluetoothGattService.getCharacteristic(characteristic);
                     removeNotificationCallback(characteristic1);
-                    setNotificationCallback(characteristic1).with((device, data) -> callback.call(data.getValue()));
+                    setNotificationCallback(characteristic1).with((device, data) -> {
+                        mLinkPolicy.onTraffic();
+                        final byte[] value = data.getValue();
+                        final long start = System.nanoTime();
+                        boolean success = false;
+                        try {
+                            callback.call(value);
+                            success = true;
+                        } finally {
+                            mMetrics.recordNotification(characteristic, value == null ? 0 : value.length,
+                                    System.nanoTime() - start, success);
+                        }
+                    });
                     enableNotifications(characteristic1).enqueue();
                 });
             }
@@ -164,10 +369,15 @@ public class AsteroidBleManager extends BleManager {
         @Override
         protected final void initialize() {
             beginAtomicRequestQueue()
-                    .add(requestMtu(256) // Remember, GATT needs 3 bytes extra. This will allow packet size of 244 bytes.
+                    // Ask for the largest MTU, the phone and the watch settle on the largest one both support.
+                    // Remember, GATT needs 3 bytes extra, the ChunkSplitter takes care of the attribute limit.
+                    .add(requestMtu(LinkPolicy.MAX_MTU)
                             .with((device, mtu) -> log(Log.INFO, "MTU set to " + mtu))
                             .fail((device, status) -> log(Log.WARN, "Requested MTU not supported: " + status)))
-                    .done(device -> log(Log.INFO, "Target initialized"))
+                    .done(device -> {
+                        log(Log.INFO, "Target initialized");
+                        mLinkPolicy.onConnected();
+                    })
                     .fail((device, status) -> Log.e("Init", device.getAddress() + " not initialized with error: " + status))
                     .enqueue();
 
@@ -0,0 +1,110 @@
+/*
+ * AsteroidOSSync
+ * Copyright (c) 2023 AsteroidOS
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.asteroidos.sync.asteroid;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Splits a message into the chunks that are written to a characteristic one after another.
+ * The watch reassembles the message from the chunks.
+ *
+ * The chunk arrays are taken from a pool and given back by {@link #recycle()} once the write
+ * finished, so sending a long message does not allocate an array per chunk. Each write needs
+ * its own splitter, as the chunks stay in use until the whole write is done.
+ */
+public class ChunkSplitter {
+    // Android's BluetoothGatt.writeCharacteristic() rejects any value longer
+    // than the maximum GATT attribute length (512 bytes) since Android 13,
+    // throwing IllegalArgumentException. The default MTU-based splitter chunks
+    // at MTU - 3 bytes, which is 514 when the system negotiates the maximum MTU
+    // of 517 (as on the Pixel 8), exceeding the limit and crashing the app on
+    // the first long notification. Cap each chunk at 512 bytes regardless of
+    // the negotiated MTU. The watch reassembles the message from the chunks, so
+    // a smaller chunk size has no effect other than splitting into more writes.
+    public static final int MAX_ATTRIBUTE_LENGTH = 512;
+
+    private static final int MAX_POOLED_PER_LENGTH = 16;
+    // Free chunk arrays, indexed by their length.
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static final ArrayDeque<byte[]>[] sPool = new ArrayDeque[MAX_ATTRIBUTE_LENGTH + 1];
+
+    private final ArrayList<byte[]> mChunks = new ArrayList<>();
+    private int mChunkCount = 0;
+
+    /**
+     * @param message   the whole message
+     * @param index     the index of the requested chunk
+     * @param maxLength the largest chunk the link can carry, MTU - 3
+     * @return the chunk, or null if the message has no more chunks
+     */
+    public final byte[] chunk(byte[] message, int index, int maxLength) {
+        final int size = chunkSize(maxLength);
+        final int offset = index * size;
+        if (offset >= message.length)
+            return null;
+        mChunkCount++;
+        // A message that fits into one write is passed on as it is.
+        if (index == 0 && message.length <= size)
+            return message;
+        final int length = Math.min(size, message.length - offset);
+        final byte[] chunk = obtainChunk(length);
+        System.arraycopy(message, offset, chunk, 0, length);
+        mChunks.add(chunk);
+        return chunk;
+    }
+
+    /**
+     * Gives the chunks of the finished write back to the pool.
+     */
+    public final void recycle() {
+        synchronized (sPool) {
+            for (byte[] chunk : mChunks) {
+                ArrayDeque<byte[]> chunks = sPool[chunk.length];
+                if (chunks == null) {
+                    chunks = new ArrayDeque<>();
+                    sPool[chunk.length] = chunks;
+                }
+                if (chunks.size() < MAX_POOLED_PER_LENGTH)
+                    chunks.addFirst(chunk);
+            }
+        }
+        mChunks.clear();
+    }
+
+    /**
+     * @return the number of chunks that were handed out
+     */
+    public final int getChunkCount() {
+        return mChunkCount;
+    }
+
+    public static int chunkSize(int maxLength) {
+        return Math.min(maxLength, MAX_ATTRIBUTE_LENGTH);
+    }
+
+    private static byte[] obtainChunk(int length) {
+        synchronized (sPool) {
+            ArrayDeque<byte[]> chunks = sPool[length];
+            if (chunks != null && !chunks.isEmpty())
+                return chunks.pollFirst();
+        }
+        return new byte[length];
+    }
+}
@@ -20,6 +20,7 @@ package org.asteroidos.sync.asteroid;
 
 import org.asteroidos.sync.connectivity.IConnectivityService;
 import org.asteroidos.sync.connectivity.IServiceCallback;
+import org.asteroidos.sync.utils.PooledBuffer;
 
 import java.util.HashMap;
 import java.util.UUID;
@@ -39,10 +40,23 @@ public interface IAsteroidDevice {
     ConnectionState getConnectionState();
 
     void send(UUID characteristic, byte[] data, IConnectivityService service);
+    void send(UUID characteristic, byte[] data, IConnectivityService service, IConnectivityService.Priority priority);
+    // Takes ownership of the buffer and recycles it once it was written.
+    void send(UUID characteristic, PooledBuffer data, IConnectivityService service, IConnectivityService.Priority priority);
+    // While the watch is disconnected, writes wait in the outbox for up to ttl milliseconds.
+    // A write replaces an older waiting write with the same dedupe key, which may be null.
+    void send(UUID characteristic, PooledBuffer data, IConnectivityService service, IConnectivityService.Priority priority,
+              String dedupeKey, long ttl);
+    // Hints that the service transfers a large amount of data, so the link should be fast.
+    void setBulkTransfer(IConnectivityService service, boolean bulk);
     void registerBleService(IConnectivityService service);
     void unregisterBleService(UUID serviceUUID);
     void registerCallback(UUID characteristicUUID, IServiceCallback callback);
     void unregisterCallback(UUID characteristicUUID);
+    // The characteristic is read every time the watch connected. The callback gets null if the
+    // watch does not have the characteristic or the read failed.
+    void registerReadCallback(UUID characteristicUUID, IServiceCallback callback);
+    TransportMetrics getTransportMetrics();
 
     IConnectivityService getServiceByUUID(UUID uuid);
     HashMap<UUID, IConnectivityService> getServices();
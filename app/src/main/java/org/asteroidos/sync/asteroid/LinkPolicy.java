@@ -0,0 +1,188 @@
+/*
+ * AsteroidOSSync
+ * Copyright (c) 2023 AsteroidOS
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.asteroidos.sync.asteroid;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.asteroidos.sync.connectivity.IConnectivityService;
+
+import java.util.HashSet;
+
+import no.nordicsemi.android.ble.ConnectionPriorityRequest;
+
+/**
+ * Decides which link parameters the connection to the watch should use for the current workload.
+ *
+ * The link runs at high priority while a service announced a bulk transfer, at balanced priority
+ * while there is other traffic and at low power once the link was idle for a while. A fast link
+ * makes screenshot downloads usable, but keeping it up when nothing is sent drains the batteries
+ * of the phone and the watch.
+ *
+ * All state is kept on the main looper, the public methods can be called from any thread.
+ */
+public class LinkPolicy {
+    public static final String TAG = LinkPolicy.class.toString();
+
+    // The largest ATT MTU Android negotiates. A write carries MTU - 3 = 514 bytes, which the
+    // ChunkSplitter caps at the maximum attribute length of 512 bytes.
+    public static final int MAX_MTU = 517;
+
+    // Time without traffic after which the link drops to low power.
+    private static final long IDLE_TIMEOUT_MS = 5000;
+    // Time without traffic after which a bulk transfer is considered dead, e.g. when the watch
+    // stopped sending a screenshot halfway. The hints of all services are dropped then.
+    private static final long BULK_TIMEOUT_MS = 15000;
+
+    private static final int MSG_TRAFFIC = 1;
+    private static final int MSG_BULK = 2;
+    private static final int MSG_IDLE_CHECK = 3;
+
+    public enum LinkState {
+        BULK(ConnectionPriorityRequest.CONNECTION_PRIORITY_HIGH),
+        ACTIVE(ConnectionPriorityRequest.CONNECTION_PRIORITY_BALANCED),
+        IDLE(ConnectionPriorityRequest.CONNECTION_PRIORITY_LOW_POWER);
+
+        public final int connectionPriority;
+
+        LinkState(int connectionPriority) {
+            this.connectionPriority = connectionPriority;
+        }
+    }
+
+    /**
+     * Applies the link parameters, implemented by the BLE manager.
+     */
+    public interface Link {
+        void requestConnectionPriority(LinkState state);
+    }
+
+    private final Link mLink;
+    private final Handler mHandler;
+    // Services that announced a bulk transfer. Only accessed on the main looper.
+    private final HashSet<IConnectivityService> mBulkServices = new HashSet<>();
+    private volatile LinkState mState = LinkState.ACTIVE;
+    private volatile long mLastTraffic;
+    private boolean mConnected = false;
+
+    public LinkPolicy(Link link) {
+        mLink = link;
+        mHandler = new Handler(Looper.getMainLooper(), this::handleMessage);
+    }
+
+    /**
+     * Called once the link is up. Android connects at balanced priority.
+     */
+    public final void onConnected() {
+        mHandler.post(() -> {
+            mConnected = true;
+            mState = LinkState.ACTIVE;
+            mLastTraffic = SystemClock.uptimeMillis();
+            scheduleIdleCheck(IDLE_TIMEOUT_MS);
+        });
+    }
+
+    public final void onDisconnected() {
+        mHandler.post(() -> {
+            mConnected = false;
+            mBulkServices.clear();
+            mState = LinkState.ACTIVE;
+            mHandler.removeMessages(MSG_IDLE_CHECK);
+        });
+    }
+
+    /**
+     * Called for every write and every notification. This is on the hot path, so it only posts
+     * a message when the link has to wake up from low power.
+     */
+    public final void onTraffic() {
+        mLastTraffic = SystemClock.uptimeMillis();
+        if (mState == LinkState.IDLE && !mHandler.hasMessages(MSG_TRAFFIC))
+            mHandler.sendEmptyMessage(MSG_TRAFFIC);
+    }
+
+    /**
+     * Asks for a fast link while the service transfers a large amount of data.
+     */
+    public final void setBulkTransfer(IConnectivityService service, boolean bulk) {
+        mLastTraffic = SystemClock.uptimeMillis();
+        mHandler.sendMessage(Message.obtain(mHandler, MSG_BULK, bulk ? 1 : 0, 0, service));
+    }
+
+    public final LinkState getState() {
+        return mState;
+    }
+
+    private boolean handleMessage(Message msg) {
+        switch (msg.what) {
+            case MSG_TRAFFIC:
+                if (mState == LinkState.IDLE)
+                    switchTo(LinkState.ACTIVE);
+                break;
+            case MSG_BULK:
+                if (msg.arg1 == 1)
+                    mBulkServices.add((IConnectivityService) msg.obj);
+                else
+                    mBulkServices.remove(msg.obj);
+                switchTo(mBulkServices.isEmpty() ? LinkState.ACTIVE : LinkState.BULK);
+                break;
+            case MSG_IDLE_CHECK:
+                checkIdle();
+                break;
+            default:
+                return false;
+        }
+        return true;
+    }
+
+    private void checkIdle() {
+        final long timeout = mState == LinkState.BULK ? BULK_TIMEOUT_MS : IDLE_TIMEOUT_MS;
+        final long idle = SystemClock.uptimeMillis() - mLastTraffic;
+        if (idle < timeout) {
+            scheduleIdleCheck(timeout - idle);
+            return;
+        }
+        if (mState == LinkState.BULK) {
+            Log.w(TAG, "No bulk traffic for " + idle + "ms, dropping the bulk hints of " + mBulkServices.size() + " services");
+            mBulkServices.clear();
+        }
+        switchTo(LinkState.IDLE);
+    }
+
+    private void switchTo(LinkState state) {
+        if (!mConnected)
+            return;
+        if (state != LinkState.IDLE)
+            scheduleIdleCheck(state == LinkState.BULK ? BULK_TIMEOUT_MS : IDLE_TIMEOUT_MS);
+        if (state == mState)
+            return;
+        Log.d(TAG, "Link " + mState + " -> " + state);
+        mState = state;
+        mLink.requestConnectionPriority(state);
+    }
+
+    private void scheduleIdleCheck(long delay) {
+        mHandler.removeMessages(MSG_IDLE_CHECK);
+        mHandler.sendEmptyMessageDelayed(MSG_IDLE_CHECK, delay);
+    }
+}
@@ -0,0 +1,386 @@
+/*
+ * AsteroidOSSync
+ * Copyright (c) 2023 AsteroidOS
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.asteroidos.sync.asteroid;
+
+import android.util.Log;
+
+import org.asteroidos.sync.connectivity.IConnectivityService;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the writes to the watch that could not be sent while it was disconnected, so they can be
+ * replayed once it is back.
+ *
+ * The entries are stored in an append-only journal of ADD and REMOVE records, which survives the
+ * process being killed during a long dropout. The journal is rewritten with the live entries only
+ * once the removed records outnumber them. Every entry expires after its TTL, and an entry with
+ * a dedupe key replaces an older entry with the same key, so a notification that is posted and
+ * removed while the watch is away is only sent once. An entry whose key is the key of another
+ * entry followed by {@link #DEPENDENT_SEPARATOR} builds upon that entry, it is dropped together
+ * with it when a newer entry with that key arrives.
+ *
+ * Only the entries in memory are updated on the calling thread, the journal is read and written
+ * on a background thread.
+ */
+public class Outbox {
+    public static final String TAG = Outbox.class.toString();
+    public static final char DEPENDENT_SEPARATOR = '#';
+
+    private static final int MAX_ENTRIES = 256;
+    private static final int MIN_COMPACT_RECORDS = 64;
+    private static final byte RECORD_ADD = 'A';
+    private static final byte RECORD_REMOVE = 'R';
+
+    public static class Entry {
+        public final long seq;
+        public final UUID characteristic;
+        public final UUID service;
+        public final IConnectivityService.Priority priority;
+        public final long expiresAt;
+        public final String dedupeKey;
+        public final byte[] data;
+
+        Entry(long seq, UUID characteristic, UUID service, IConnectivityService.Priority priority,
+              long expiresAt, String dedupeKey, byte[] data) {
+            this.seq = seq;
+            this.characteristic = characteristic;
+            this.service = service;
+            this.priority = priority;
+            this.expiresAt = expiresAt;
+            this.dedupeKey = dedupeKey;
+            this.data = data;
+        }
+    }
+
+    private final File mFile;
+    // Runs all file I/O in order. Records are queued behind the load of the journal.
+    private final ExecutorService mWriter = Executors.newSingleThreadExecutor();
+    // The live entries in the order they were added.
+    private LinkedHashMap<Long, Entry> mEntries = new LinkedHashMap<>();
+    private final HashMap<String, Entry> mByKey = new HashMap<>();
+    // Only accessed on mWriter.
+    private DataOutputStream mJournal;
+    private long mNextSeq = 0;
+    private int mRemovedRecords = 0;
+    // Once closed, the entries are only kept in memory.
+    private boolean mClosed = false;
+
+    public Outbox(File file) {
+        mFile = file;
+        mWriter.execute(this::load);
+    }
+
+    /**
+     * Stores a write until the watch is back.
+     *
+     * @param dedupeKey an older entry with the same key is dropped along with the entries that
+     *                  depend on it, may be null
+     * @param ttl       the time in milliseconds after which the write is not worth sending anymore
+     */
+    public final synchronized void add(UUID characteristic, UUID service, IConnectivityService.Priority priority,
+                                       byte[] data, int offset, int length, String dedupeKey, long ttl) {
+        if (dedupeKey != null) {
+            Entry old = mByKey.get(dedupeKey);
+            if (old != null)
+                remove(old);
+            removeDependents(dedupeKey);
+        }
+        if (mEntries.size() >= MAX_ENTRIES) {
+            Entry victim = leastUrgent();
+            // A full outbox keeps the more urgent writes.
+            if (priority.compareTo(victim.priority) > 0) {
+                Log.w(TAG, "Outbox is full, dropping a " + priority + " write to " + characteristic);
+                return;
+            }
+            remove(victim);
+        }
+
+        byte[] copy = new byte[length];
+        System.arraycopy(data, offset, copy, 0, length);
+        Entry entry = new Entry(mNextSeq++, characteristic, service, priority,
+                System.currentTimeMillis() + ttl, dedupeKey, copy);
+        mEntries.put(entry.seq, entry);
+        if (dedupeKey != null)
+            mByKey.put(dedupeKey, entry);
+        io(() -> {
+            try {
+                DataOutputStream journal = journal();
+                writeAdd(journal, entry);
+                journal.flush();
+            } catch (IOException e) {
+                Log.e(TAG, "Could not journal outbox entry", e);
+            }
+        });
+        compactIfNeeded();
+    }
+
+    /**
+     * Removes all entries that did not expire yet and hands them out for sending.
+     *
+     * @return the entries, most urgent first and in the order they were added within a priority
+     */
+    public final synchronized List<Entry> takeAll() {
+        final long now = System.currentTimeMillis();
+        List<Entry> entries = new ArrayList<>(mEntries.size());
+        for (Entry entry : mEntries.values())
+            if (entry.expiresAt > now)
+                entries.add(entry);
+        // A stable sort, entries of the same priority stay in the order they were added.
+        entries.sort(Comparator.comparing((Entry entry) -> entry.priority));
+        clear();
+        return entries;
+    }
+
+    public final synchronized int size() {
+        return mEntries.size();
+    }
+
+    public final synchronized void clear() {
+        mEntries.clear();
+        mByKey.clear();
+        mRemovedRecords = 0;
+        io(() -> {
+            closeJournal();
+            if (mFile.exists() && !mFile.delete())
+                Log.w(TAG, "Could not delete " + mFile);
+        });
+    }
+
+    private void remove(Entry entry) {
+        mEntries.remove(entry.seq);
+        if (entry.dedupeKey != null && mByKey.get(entry.dedupeKey) == entry)
+            mByKey.remove(entry.dedupeKey);
+        mRemovedRecords++;
+        final long seq = entry.seq;
+        io(() -> {
+            try {
+                DataOutputStream journal = journal();
+                journal.writeByte(RECORD_REMOVE);
+                journal.writeLong(seq);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not journal outbox removal", e);
+            }
+        });
+    }
+
+    private void removeDependents(String dedupeKey) {
+        String prefix = dedupeKey + DEPENDENT_SEPARATOR;
+        List<Entry> dependents = new ArrayList<>();
+        for (Entry entry : mEntries.values())
+            if (entry.dedupeKey != null && entry.dedupeKey.startsWith(prefix))
+                dependents.add(entry);
+        for (Entry entry : dependents)
+            remove(entry);
+    }
+
+    private static String baseKey(String dedupeKey) {
+        int separator = dedupeKey.lastIndexOf(DEPENDENT_SEPARATOR);
+        return separator < 0 ? null : dedupeKey.substring(0, separator);
+    }
+
+    private Entry leastUrgent() {
+        Entry victim = null;
+        for (Entry entry : mEntries.values())
+            if (victim == null || entry.priority.compareTo(victim.priority) > 0)
+                victim = entry;
+        return victim;
+    }
+
+    private void compactIfNeeded() {
+        // The journal holds one ADD record for every entry plus an ADD and a REMOVE for every
+        // removed one.
+        if (mRemovedRecords < MIN_COMPACT_RECORDS || mRemovedRecords < mEntries.size())
+            return;
+        final List<Entry> entries = new ArrayList<>(mEntries.values());
+        mRemovedRecords = 0;
+        io(() -> compact(entries));
+    }
+
+    /**
+     * Writes the pending records and closes the journal. The file I/O finishes in the background,
+     * later changes are only kept in memory.
+     */
+    public final synchronized void close() {
+        if (mClosed)
+            return;
+        mClosed = true;
+        mWriter.execute(this::closeJournal);
+        mWriter.shutdown();
+    }
+
+    /**
+     * Waits for the file I/O to finish after {@link #close()}.
+     *
+     * @return whether it finished within the timeout
+     */
+    final boolean awaitClosed(long timeoutMs) throws InterruptedException {
+        return mWriter.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void io(Runnable task) {
+        if (!mClosed)
+            mWriter.execute(task);
+    }
+
+    /**
+     * Rewrites the journal with the given entries, runs on mWriter.
+     */
+    private void compact(List<Entry> entries) {
+        closeJournal();
+        File tmp = new File(mFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            for (Entry entry : entries)
+                writeAdd(out, entry);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not compact the outbox", e);
+            return;
+        }
+        if (!tmp.renameTo(mFile))
+            Log.e(TAG, "Could not replace " + mFile);
+    }
+
+    /**
+     * Reads the journal and puts its entries in front of those added meanwhile, runs on mWriter
+     * before any other file I/O.
+     */
+    private void load() {
+        if (!mFile.exists())
+            return;
+        LinkedHashMap<Long, Entry> loaded = new LinkedHashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)))) {
+            while (true) {
+                byte type;
+                try {
+                    type = in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (type == RECORD_ADD) {
+                    Entry entry = readAdd(in);
+                    loaded.put(entry.seq, entry);
+                } else if (type == RECORD_REMOVE) {
+                    loaded.remove(in.readLong());
+                } else {
+                    throw new IOException("Unknown record type " + type);
+                }
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            // The process may have been killed in the middle of a record, keep what was read.
+            Log.w(TAG, "Outbox journal is damaged, keeping " + loaded.size() + " entries", e);
+        }
+
+        List<Entry> entries;
+        synchronized (this) {
+            // The entries that were added meanwhile are newer, they got the first sequence
+            // numbers though. The loaded ones are numbered after them, their old numbers are
+            // gone with the compaction below.
+            final long now = System.currentTimeMillis();
+            LinkedHashMap<Long, Entry> merged = new LinkedHashMap<>();
+            HashSet<String> newer = new HashSet<>(mByKey.keySet());
+            for (Entry entry : loaded.values()) {
+                if (entry.expiresAt <= now)
+                    continue;
+                if (entry.dedupeKey != null && (newer.contains(entry.dedupeKey) || newer.contains(baseKey(entry.dedupeKey))))
+                    continue;
+                Entry renumbered = new Entry(mNextSeq++, entry.characteristic, entry.service, entry.priority,
+                        entry.expiresAt, entry.dedupeKey, entry.data);
+                merged.put(renumbered.seq, renumbered);
+                if (renumbered.dedupeKey != null)
+                    mByKey.put(renumbered.dedupeKey, renumbered);
+            }
+            merged.putAll(mEntries);
+            mEntries = merged;
+            mRemovedRecords = 0;
+            entries = new ArrayList<>(mEntries.values());
+        }
+        // Start from a clean journal, this also drops a damaged tail. Records of the entries
+        // that were added meanwhile follow, the duplicate ADD records are harmless.
+        compact(entries);
+    }
+
+    private DataOutputStream journal() throws IOException {
+        if (mJournal == null)
+            mJournal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mFile, true)));
+        return mJournal;
+    }
+
+    private void closeJournal() {
+        if (mJournal == null)
+            return;
+        try {
+            mJournal.close();
+        } catch (IOException ignored) {
+        }
+        mJournal = null;
+    }
+
+    private static void writeAdd(DataOutputStream out, Entry entry) throws IOException {
+        out.writeByte(RECORD_ADD);
+        out.writeLong(entry.seq);
+        out.writeLong(entry.characteristic.getMostSignificantBits());
+        out.writeLong(entry.characteristic.getLeastSignificantBits());
+        out.writeLong(entry.service.getMostSignificantBits());
+        out.writeLong(entry.service.getLeastSignificantBits());
+        out.writeByte(entry.priority.ordinal());
+        out.writeLong(entry.expiresAt);
+        out.writeBoolean(entry.dedupeKey != null);
+        if (entry.dedupeKey != null)
+            out.writeUTF(entry.dedupeKey);
+        out.writeInt(entry.data.length);
+        out.write(entry.data);
+    }
+
+    private static Entry readAdd(DataInputStream in) throws IOException {
+        long seq = in.readLong();
+        UUID characteristic = new UUID(in.readLong(), in.readLong());
+        UUID service = new UUID(in.readLong(), in.readLong());
+        int priority = in.readUnsignedByte();
+        IConnectivityService.Priority[] priorities = IConnectivityService.Priority.values();
+        if (priority >= priorities.length)
+            throw new IOException("Unknown priority " + priority);
+        long expiresAt = in.readLong();
+        String dedupeKey = in.readBoolean() ? in.readUTF() : null;
+        int length = in.readInt();
+        if (length < 0 || length > 1 << 20)
+            throw new IOException("Invalid entry length " + length);
+        byte[] data = new byte[length];
+        in.readFully(data);
+        return new Entry(seq, characteristic, service, priorities[priority], expiresAt, dedupeKey, data);
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * AsteroidOSSync
+ * Copyright (c) 2023 AsteroidOS
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.asteroidos.sync.asteroid;
+
+import org.asteroidos.sync.connectivity.IConnectivityService;
+import org.asteroidos.sync.utils.PooledBuffer;
+
+import java.util.UUID;
+
+/**
+ * A write to a characteristic of the watch that waits in the {@link WriteScheduler}.
+ */
+public class PendingWrite {
+    // How long a write waits in the Outbox for the watch to come back, unless the service chose
+    // a different TTL.
+    public static final long DEFAULT_TTL_MS = 60 * 60 * 1000;
+
+    public final UUID characteristic;
+    public final IConnectivityService service;
+    public final IConnectivityService.Priority priority;
+    public final long enqueueTime;
+    // Used when the write has to wait in the Outbox for the watch to reconnect.
+    public final String dedupeKey;
+    public final long ttl;
+    // The value may be replaced in place when a newer value for a LAST_VALUE_WINS
+    // characteristic arrives. Only the first length bytes of data are sent.
+    public byte[] data;
+    public int length;
+    private PooledBuffer mBuffer;
+
+    public PendingWrite(UUID characteristic, byte[] data, IConnectivityService service, IConnectivityService.Priority priority) {
+        this(characteristic, data, service, priority, null, DEFAULT_TTL_MS);
+    }
+
+    public PendingWrite(UUID characteristic, byte[] data, IConnectivityService service, IConnectivityService.Priority priority,
+                        String dedupeKey, long ttl) {
+        this.characteristic = characteristic;
+        this.data = data;
+        this.length = data.length;
+        this.service = service;
+        this.priority = priority;
+        this.dedupeKey = dedupeKey;
+        this.ttl = ttl;
+        this.enqueueTime = System.nanoTime();
+    }
+
+    /**
+     * Creates a write that owns the buffer, it is recycled by {@link #recycle()}.
+     */
+    public PendingWrite(UUID characteristic, PooledBuffer buffer, IConnectivityService service, IConnectivityService.Priority priority,
+                        String dedupeKey, long ttl) {
+        this.characteristic = characteristic;
+        this.data = buffer.array();
+        this.length = buffer.size();
+        this.mBuffer = buffer;
+        this.service = service;
+        this.priority = priority;
+        this.dedupeKey = dedupeKey;
+        this.ttl = ttl;
+        this.enqueueTime = System.nanoTime();
+    }
+
+    /**
+     * Takes over the value of a newer write to the same characteristic.
+     */
+    final void replace(PendingWrite newer) {
+        recycle();
+        data = newer.data;
+        length = newer.length;
+        mBuffer = newer.mBuffer;
+        newer.mBuffer = null;
+    }
+
+    /**
+     * Gives the buffer of the value back to the pool once the write is done or dropped.
+     */
+    public final void recycle() {
+        if (mBuffer != null) {
+            mBuffer.recycle();
+            mBuffer = null;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * AsteroidOSSync
+ * Copyright (c) 2023 AsteroidOS
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.asteroidos.sync.asteroid;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/**
+ * Counts the traffic on the link to the watch per characteristic.
+ *
+ * Writes record how many chunks and bytes they took, how long they waited from the enqueue until
+ * the GATT stack finished them, and whether they failed. Notifications from the watch record the
+ * same for the time the registered callback took to handle them. Latencies are kept in a
+ * histogram with power of two millisecond buckets, which is cheap enough to update on every write.
+ * Services that compress their messages also record the size before and after, and services
+ * that drop messages the watch already has count them.
+ */
+public class TransportMetrics {
+    // Bucket i counts latencies below 2^i ms, the last bucket everything above.
+    public static final int LATENCY_BUCKETS = 16;
+
+    public enum Direction {
+        OUT,
+        IN
+    }
+
+    public static class Counters {
+        public long count = 0;
+        public long chunks = 0;
+        public long bytes = 0;
+        public long failures = 0;
+        // Size of the messages before and after compression, if the service compresses them.
+        public long rawBytes = 0;
+        public long encodedBytes = 0;
+        // Messages that were not sent because the watch already had the same content.
+        public long duplicates = 0;
+        public final long[] latency = new long[LATENCY_BUCKETS];
+
+        /**
+         * @return the compressed size relative to the raw size, 1 if nothing was compressed
+         */
+        public final double compressionRatio() {
+            return rawBytes == 0 ? 1 : (double) encodedBytes / rawBytes;
+        }
+
+        /**
+         * @return the upper bound in milliseconds of the bucket that contains the given quantile
+         */
+        public final long latencyQuantile(double quantile) {
+            long total = 0;
+            for (long bucket : latency)
+                total += bucket;
+            if (total == 0)
+                return 0;
+            long rank = (long) Math.ceil(total * quantile);
+            long seen = 0;
+            for (int i = 0; i < LATENCY_BUCKETS; i++) {
+                seen += latency[i];
+                if (seen >= rank)
+                    return 1L << i;
+            }
+            return 1L << (LATENCY_BUCKETS - 1);
+        }
+    }
+
+    // Sorted, so that the dump lists the characteristics in a stable order.
+    private final TreeMap<UUID, Counters> mOut = new TreeMap<>();
+    private final TreeMap<UUID, Counters> mIn = new TreeMap<>();
+    private long mSince = System.currentTimeMillis();
+
+    public final synchronized void recordWrite(UUID characteristic, int bytes, int chunks, long latencyNanos, boolean success) {
+        record(mOut, characteristic, bytes, chunks, latencyNanos, success);
+    }
+
+    public final synchronized void recordNotification(UUID characteristic, int bytes, long handlingNanos, boolean success) {
+        record(mIn, characteristic, bytes, 1, handlingNanos, success);
+    }
+
+    /**
+     * Records the size of a message before and after it was compressed. Messages that were sent
+     * uncompressed count with the same size for both.
+     */
+    public final synchronized void recordEncoding(UUID characteristic, int rawBytes, int encodedBytes) {
+        Counters counters = getOrCreate(mOut, characteristic);
+        counters.rawBytes += rawBytes;
+        counters.encodedBytes += encodedBytes;
+    }
+
+    public final synchronized void recordDuplicate(UUID characteristic) {
+        getOrCreate(mOut, characteristic).duplicates++;
+    }
+
+    /**
+     * @return a copy of the counters of the characteristic, or null if it had no traffic yet
+     */
+    public final synchronized Counters get(Direction direction, UUID characteristic) {
+        Counters counters = (direction == Direction.OUT ? mOut : mIn).get(characteristic);
+        if (counters == null)
+            return null;
+        Counters copy = new Counters();
+        copy.count = counters.count;
+        copy.chunks = counters.chunks;
+        copy.bytes = counters.bytes;
+        copy.failures = counters.failures;
+        copy.rawBytes = counters.rawBytes;
+        copy.encodedBytes = counters.encodedBytes;
+        copy.duplicates = counters.duplicates;
+        System.arraycopy(counters.latency, 0, copy.latency, 0, LATENCY_BUCKETS);
+        return copy;
+    }
+
+    public final synchronized void reset() {
+        mOut.clear();
+        mIn.clear();
+        mSince = System.currentTimeMillis();
+    }
+
+    /**
+     * @param queueDepths the number of queued writes per characteristic
+     * @return a human readable report, meant to be shown to the user or attached to bug reports
+     */
+    public final synchronized String dump(Map<UUID, Integer> queueDepths) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Transport metrics over ")
+                .append((System.currentTimeMillis() - mSince) / 1000).append(" s\n");
+        for (Map.Entry<UUID, Counters> entry : mOut.entrySet()) {
+            Integer depth = queueDepths.get(entry.getKey());
+            dump(sb, "out", entry.getKey(), entry.getValue());
+            sb.append("  queued ").append(depth == null ? 0 : depth).append('\n');
+        }
+        for (Map.Entry<UUID, Counters> entry : mIn.entrySet())
+            dump(sb, "in", entry.getKey(), entry.getValue());
+        return sb.toString();
+    }
+
+    private static void dump(StringBuilder sb, String direction, UUID characteristic, Counters counters) {
+        sb.append('\n').append(direction).append(' ').append(characteristic).append('\n')
+                .append("  ").append(counters.count).append(" messages, ")
+                .append(counters.chunks).append(" chunks, ")
+                .append(counters.bytes).append(" bytes, ")
+                .append(counters.failures).append(" failures\n")
+                .append("  latency p50 < ").append(counters.latencyQuantile(0.5))
+                .append(" ms, p99 < ").append(counters.latencyQuantile(0.99)).append(" ms\n");
+        if (counters.rawBytes != 0)
+            sb.append("  compressed ").append(counters.rawBytes).append(" to ")
+                    .append(counters.encodedBytes).append(" bytes (")
+                    .append(Math.round(counters.compressionRatio() * 100)).append("%)\n");
+        if (counters.duplicates != 0)
+            sb.append("  ").append(counters.duplicates).append(" duplicates dropped\n");
+        sb.append("  histogram");
+        for (int i = 0; i < LATENCY_BUCKETS - 1; i++)
+            if (counters.latency[i] != 0)
+                sb.append(" <").append(1L << i).append("ms:").append(counters.latency[i]);
+        if (counters.latency[LATENCY_BUCKETS - 1] != 0)
+            sb.append(" >=").append(1L << (LATENCY_BUCKETS - 2)).append("ms:").append(counters.latency[LATENCY_BUCKETS - 1]);
+        sb.append('\n');
+    }
+
+    private static void record(TreeMap<UUID, Counters> map, UUID characteristic, int bytes, int chunks, long nanos, boolean success) {
+        Counters counters = getOrCreate(map, characteristic);
+        counters.count++;
+        counters.chunks += chunks;
+        counters.bytes += bytes;
+        if (!success)
+            counters.failures++;
+        counters.latency[bucket(nanos)]++;
+    }
+
+    private static Counters getOrCreate(TreeMap<UUID, Counters> map, UUID characteristic) {
+        Counters counters = map.get(characteristic);
+        if (counters == null) {
+            counters = new Counters();
+            map.put(characteristic, counters);
+        }
+        return counters;
+    }
+
+    private static int bucket(long nanos) {
+        long millis = nanos / 1000000;
+        // 64 - numberOfLeadingZeros is the index of the lowest power of two above millis.
+        int bucket = 64 - Long.numberOfLeadingZeros(millis);
+        return Math.min(bucket, LATENCY_BUCKETS - 1);
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * AsteroidOSSync
+ * Copyright (c) 2023 AsteroidOS
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.asteroidos.sync.asteroid;
+
+import org.asteroidos.sync.connectivity.IConnectivityService;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Orders the writes to the watch before they are handed to the GATT queue.
+ *
+ * Writes are grouped by {@link IConnectivityService.Priority}. A class is only served when all
+ * more urgent classes are empty, so an incoming call never waits behind queued weather or media
+ * updates. Within a class, the {@link IConnectivityService}s share the link by deficit round
+ * robin: each service earns {@link #QUANTUM} bytes per round multiplied by its weight, which
+ * keeps a service sending long messages from starving the others.
+ *
+ * Writes to a characteristic in {@link IConnectivityService.WriteMode#LAST_VALUE_WINS} mode are
+ * coalesced: a write that is still queued gets the new value instead of a second write being
+ * appended, so stale media or weather values are never sent.
+ */
+public class WriteScheduler {
+    public static final int DEFAULT_WEIGHT = 1;
+    private static final int QUANTUM = 512;
+
+    private final EnumMap<IConnectivityService.Priority, PriorityClass> mClasses;
+    private final HashMap<IConnectivityService, Integer> mWeights;
+    private final HashSet<UUID> mLastValueWins;
+    // The queued write of every LAST_VALUE_WINS characteristic that was not sent yet.
+    private final HashMap<UUID, PendingWrite> mLatest;
+    private long mCoalescedCount = 0;
+
+    public WriteScheduler() {
+        mClasses = new EnumMap<>(IConnectivityService.Priority.class);
+        for (IConnectivityService.Priority priority : IConnectivityService.Priority.values())
+            mClasses.put(priority, new PriorityClass());
+        mWeights = new HashMap<>();
+        mLastValueWins = new HashSet<>();
+        mLatest = new HashMap<>();
+    }
+
+    public final synchronized void setWeight(IConnectivityService service, int weight) {
+        if (weight < 1)
+            throw new IllegalArgumentException("Weight must be positive: " + weight);
+        mWeights.put(service, weight);
+    }
+
+    public final synchronized void setWriteMode(UUID characteristic, IConnectivityService.WriteMode mode) {
+        if (mode == IConnectivityService.WriteMode.LAST_VALUE_WINS)
+            mLastValueWins.add(characteristic);
+        else
+            mLastValueWins.remove(characteristic);
+    }
+
+    public final synchronized void enqueue(PendingWrite write) {
+        if (mLastValueWins.contains(write.characteristic)) {
+            PendingWrite queued = mLatest.get(write.characteristic);
+            if (queued != null) {
+                if (queued.priority == write.priority && queued.service == write.service) {
+                    queued.replace(write);
+                    mCoalescedCount++;
+                    return;
+                }
+                // The stale write is dropped and the new one queued in its own class, that is
+                // not a merge.
+                remove(queued);
+                queued.recycle();
+            }
+            mLatest.put(write.characteristic, write);
+        }
+
+        PriorityClass priorityClass = mClasses.get(write.priority);
+        Flow flow = priorityClass.flows.get(write.service);
+        if (flow == null) {
+            flow = new Flow();
+            priorityClass.flows.put(write.service, flow);
+        }
+        if (flow.queue.isEmpty())
+            priorityClass.active.addLast(flow);
+        flow.queue.addLast(write);
+        priorityClass.depth++;
+    }
+
+    /**
+     * @return the next write to send, or null if nothing is queued
+     */
+    public final synchronized PendingWrite poll() {
+        for (IConnectivityService.Priority priority : IConnectivityService.Priority.values()) {
+            PriorityClass priorityClass = mClasses.get(priority);
+            if (priorityClass.depth == 0)
+                continue;
+
+            while (true) {
+                Flow flow = priorityClass.active.getFirst();
+                PendingWrite head = flow.queue.getFirst();
+                if (!flow.visited) {
+                    flow.deficit += getWeight(head.service) * QUANTUM;
+                    flow.visited = true;
+                }
+                int cost = Math.max(1, head.length);
+                if (flow.deficit >= cost) {
+                    flow.queue.removeFirst();
+                    if (mLatest.get(head.characteristic) == head)
+                        mLatest.remove(head.characteristic);
+                    flow.deficit -= cost;
+                    if (flow.queue.isEmpty()) {
+                        flow.deficit = 0;
+                        flow.visited = false;
+                        priorityClass.active.removeFirst();
+                    }
+                    priorityClass.depth--;
+                    return head;
+                }
+                // The service used up its share of this round, continue with the next one.
+                flow.visited = false;
+                priorityClass.active.addLast(priorityClass.active.removeFirst());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the number of writes of the given class that wait to be sent
+     */
+    public final synchronized int getQueueDepth(IConnectivityService.Priority priority) {
+        return mClasses.get(priority).depth;
+    }
+
+    /**
+     * @return the number of writes that were merged into an already queued write
+     */
+    public final synchronized long getCoalescedCount() {
+        return mCoalescedCount;
+    }
+
+    /**
+     * @return the number of queued writes per characteristic
+     */
+    public final synchronized HashMap<UUID, Integer> getQueueDepths() {
+        HashMap<UUID, Integer> depths = new HashMap<>();
+        for (PriorityClass priorityClass : mClasses.values())
+            for (Flow flow : priorityClass.flows.values())
+                for (PendingWrite write : flow.queue)
+                    depths.merge(write.characteristic, 1, Integer::sum);
+        return depths;
+    }
+
+    public final synchronized int size() {
+        int size = 0;
+        for (PriorityClass priorityClass : mClasses.values())
+            size += priorityClass.depth;
+        return size;
+    }
+
+    /**
+     * Removes all queued writes. The caller owns the returned writes and has to recycle them.
+     *
+     * @return the removed writes, most urgent first
+     */
+    public final synchronized List<PendingWrite> drain() {
+        List<PendingWrite> writes = new ArrayList<>();
+        PendingWrite write;
+        while ((write = poll()) != null)
+            writes.add(write);
+        return writes;
+    }
+
+    private void remove(PendingWrite write) {
+        PriorityClass priorityClass = mClasses.get(write.priority);
+        Flow flow = priorityClass.flows.get(write.service);
+        if (flow == null || !flow.queue.removeFirstOccurrence(write))
+            return;
+        priorityClass.depth--;
+        if (flow.queue.isEmpty()) {
+            flow.deficit = 0;
+            flow.visited = false;
+            priorityClass.active.remove(flow);
+        }
+    }
+
+    private int getWeight(IConnectivityService service) {
+        Integer weight = mWeights.get(service);
+        return weight == null ? DEFAULT_WEIGHT : weight;
+    }
+
+    private static class Flow {
+        final ArrayDeque<PendingWrite> queue = new ArrayDeque<>();
+        int deficit = 0;
+        boolean visited = false;
+    }
+
+    private static class PriorityClass {
+        final HashMap<IConnectivityService, Flow> flows = new HashMap<>();
+        final ArrayDeque<Flow> active = new ArrayDeque<>();
+        int depth = 0;
+    }
+}
@@ -31,7 +31,46 @@ public interface IConnectivityService extends IService {
         TO_WATCH
     }
 
+    /**
+     * Priority classes of writes to the watch, from most to least urgent. A queued write is only
+     * sent once no write of a more urgent class is waiting.
+     */
+    enum Priority {
+        ALERT,
+        NOTIFICATION,
+        MEDIA,
+        BACKGROUND
+    }
+
+    /**
+     * How writes to a TO_WATCH characteristic that are still waiting to be sent are treated.
+     */
+    enum WriteMode {
+        // Every write is sent to the watch, in order.
+        QUEUE,
+        // Only the latest value matters: a newer write replaces a queued write that was not sent yet.
+        LAST_VALUE_WINS,
+        // Like QUEUE, but long writes are pipelined as writes without response, if the watch supports them.
+        BULK
+    }
+
     HashMap<UUID, Direction> getCharacteristicUUIDs();
 
+    /**
+     * @return the TO_WATCH characteristics that do not use {@link WriteMode#QUEUE}
+     */
+    HashMap<UUID, WriteMode> getCharacteristicWriteModes();
+
+    /**
+     * @return the {@link Priority} used for writes of this service that do not specify one
+     */
+    Priority getPriority();
+
+    /**
+     * @return the share of the link this service gets relative to the other services of its
+     * {@link Priority} while they all have writes waiting, at least 1
+     */
+    int getWeight();
+
     UUID getServiceUUID();
 }
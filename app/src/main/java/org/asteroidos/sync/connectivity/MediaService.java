@@ -334,8 +334,30 @@ public class MediaService implements IConnectivityService,  MediaSessionManager.
         return chars;
     }
 
+    @Override
+    public HashMap<UUID, WriteMode> getCharacteristicWriteModes() {
+        HashMap<UUID, WriteMode> chars = new HashMap<>();
+        chars.put(AsteroidUUIDS.MEDIA_TITLE_CHAR, WriteMode.LAST_VALUE_WINS);
+        chars.put(AsteroidUUIDS.MEDIA_ALBUM_CHAR, WriteMode.LAST_VALUE_WINS);
+        chars.put(AsteroidUUIDS.MEDIA_ARTIST_CHAR, WriteMode.LAST_VALUE_WINS);
+        chars.put(AsteroidUUIDS.MEDIA_PLAYING_CHAR, WriteMode.LAST_VALUE_WINS);
+        chars.put(AsteroidUUIDS.MEDIA_VOLUME_CHAR, WriteMode.LAST_VALUE_WINS);
+        return chars;
+    }
+
     @Override
     public final UUID getServiceUUID() {
         return AsteroidUUIDS.MEDIA_SERVICE_UUID;
     }
+
+    @Override
+    public final Priority getPriority() {
+        return Priority.MEDIA;
+    }
+
+    // Track changes are what the user looks at, they should not wait behind screenshot requests.
+    @Override
+    public final int getWeight() {
+        return 2;
+    }
 }
@@ -22,35 +22,92 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.Looper;
 
 import org.asteroidos.sync.NotificationPreferences;
 import org.asteroidos.sync.asteroid.IAsteroidDevice;
+import org.asteroidos.sync.asteroid.Outbox;
+import org.asteroidos.sync.asteroid.PendingWrite;
 import org.asteroidos.sync.dataobjects.Notification;
+import org.asteroidos.sync.dataobjects.NotificationEvent;
+import org.asteroidos.sync.services.NLService;
 import org.asteroidos.sync.utils.AsteroidUUIDS;
+import org.asteroidos.sync.utils.ContentHashCache;
+import org.asteroidos.sync.utils.NotificationBus;
+import org.asteroidos.sync.utils.NotificationDeflater;
+import org.asteroidos.sync.utils.NotificationPipeline;
+import org.asteroidos.sync.utils.PooledBuffer;
+import org.asteroidos.sync.utils.XmlWriter;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Objects;
 import java.util.UUID;
 
 public class NotificationService implements IConnectivityService {
 
     public static final String TAG = NotificationService.class.toString();
+    // The receiver stays registered for this long after a disconnect. Notifications posted during
+    // a dropout wait in the outbox for as long, after that a full refresh is sent on reconnect.
+    private static final long RECONNECT_GRACE_MS = 2 * 60 * 1000;
+    // A ringing call is not worth showing once it stopped ringing.
+    private static final long ALERT_TTL_MS = 30 * 1000;
+    private static final int CONTENT_CACHE_SIZE = 128;
+    // How long the link stays fast for a refresh. Its writes are queued at once, so this only
+    // needs to cover the transfer itself.
+    private static final long REFRESH_BULK_MS = 3000;
     private final Context mCtx;
     private final IAsteroidDevice mDevice;
+    // Events of other processes still arrive as broadcasts, those of this process on the bus.
     private NotificationReceiver mNReceiver;
+    private final NotificationBus.Consumer mBusConsumer = this::onNotificationEvent;
+    private final Handler mHandler;
+    private final Runnable mUnregister = this::unregisterReceiver;
+    private final Runnable mEndBulkTransfer = this::endBulkTransfer;
+    // Notifications that were sent as alerts, their removal is as urgent as their arrival.
+    private final HashSet<String> mAlertIds = new HashSet<>();
+    // Makes the outbox keys of the updates unique, an update never replaces another.
+    private long mUpdateSeq = 0;
+    // What the connected watch understands, see AsteroidUUIDS.NOTIFICATION_CAPABILITIES_CHAR.
+    // Written by the read callback on the BLE thread.
+    private volatile int mCapabilities = 0;
+    private NotificationDeflater mDeflater;
+    private final XmlWriter mXmlWriter = new XmlWriter();
+    // The last notification sent to the watch per package and id, so that a re-post only sends
+    // what changed. Apps often use the same small ids.
+    private final HashMap<String, Notification> mSent = new HashMap<>();
+    // What the watch shows per package and id, re-posts with the same content are dropped.
+    private final ContentHashCache mContentHashes = new ContentHashCache(CONTENT_CACHE_SIZE);
 
     public NotificationService(Context ctx, IAsteroidDevice device) {
         this.mDevice = device;
         this.mCtx = ctx;
+        this.mHandler = new Handler(Looper.getMainLooper());
+
+        device.registerReadCallback(AsteroidUUIDS.NOTIFICATION_CAPABILITIES_CHAR, data -> {
+            // Older watches do not have the characteristic and only understand XML.
+            int capabilities = 0;
+            if (data != null)
+                for (int i = 0; i < data.length && i < 4; i++)
+                    capabilities |= (data[i] & 0xFF) << (8 * i);
+            mCapabilities = capabilities;
+        });
     }
 
     @Override
     public void sync() {
+        mHandler.removeCallbacks(mUnregister);
+        // After a short dropout the receiver is still registered and the outbox held everything
+        // that was posted meanwhile, so there is no need to send all notifications again.
         if (mNReceiver == null) {
             IntentFilter filter = new IntentFilter();
-            filter.addAction("org.asteroidos.sync.NOTIFICATION_LISTENER");
+            filter.addAction(NotificationEvent.ACTION);
             mNReceiver = new NotificationReceiver();
             mCtx.registerReceiver(mNReceiver, filter);
+            NotificationBus.register(mBusConsumer, mHandler);
 
             Intent i = new Intent("org.asteroidos.sync.NOTIFICATION_LISTENER_SERVICE");
             i.putExtra("command", "refresh");
@@ -60,12 +117,36 @@ public class NotificationService implements IConnectivityService {
 
     @Override
     public void unsync() {
+        // Messages that wait in the outbox meanwhile may end up at a watch with other capabilities.
+        mCapabilities = 0;
+        // Writes that are lost with the connection would leave the watch behind the cache, the
+        // first post after a reconnect is sent in full.
+        mSent.clear();
+        mContentHashes.clear();
+        if (mNReceiver != null) {
+            mHandler.removeCallbacks(mUnregister);
+            mHandler.postDelayed(mUnregister, RECONNECT_GRACE_MS);
+        }
+    }
+
+    private void endBulkTransfer() {
+        mDevice.setBulkTransfer(this, false);
+    }
+
+    private void unregisterReceiver() {
         if (mNReceiver != null) {
+            NotificationBus.unregister(mBusConsumer);
             try {
                 mCtx.unregisterReceiver(mNReceiver);
             } catch (IllegalArgumentException ignored) {
             }
             mNReceiver = null;
+
+            // The watch stayed away past the grace period, a refresh that still waits for the
+            // listener would only fill the outbox. The next sync asks for a new one.
+            Intent i = new Intent("org.asteroidos.sync.NOTIFICATION_LISTENER_SERVICE");
+            i.putExtra("command", "cancelRefresh");
+            mCtx.sendBroadcast(i);
         }
     }
 
@@ -77,61 +158,210 @@ public class NotificationService implements IConnectivityService {
         return chars;
     }
 
+    @Override
+    public final HashMap<UUID, WriteMode> getCharacteristicWriteModes() {
+        HashMap<UUID, WriteMode> modes = new HashMap<>();
+        // Chat notifications often span several chunks.
+        modes.put(AsteroidUUIDS.NOTIFICATION_UPDATE_CHAR, WriteMode.BULK);
+        return modes;
+    }
+
     @Override
     public final UUID getServiceUUID() {
         return AsteroidUUIDS.NOTIFICATION_SERVICE_UUID;
     }
 
+    @Override
+    public final Priority getPriority() {
+        return Priority.NOTIFICATION;
+    }
+
+    @Override
+    public final int getWeight() {
+        return 1;
+    }
+
+    private static String getDedupeKey(String packageName, int id) {
+        return "notification/" + getContentKey(packageName, id);
+    }
+
+    private String getUpdateKey(String packageName, int id) {
+        return getDedupeKey(packageName, id) + Outbox.DEPENDENT_SEPARATOR + mUpdateSeq++;
+    }
+
+    private static String getContentKey(String packageName, int id) {
+        return packageName + "/" + id;
+    }
+
+    /**
+     * @return the number of re-posts that were dropped because their content did not change
+     */
+    public final long getDuplicateCount() {
+        return mContentHashes.getHits();
+    }
+
+    /**
+     * @return the number of posts that were checked for duplicates and sent
+     */
+    public final long getUniqueCount() {
+        return mContentHashes.getMisses();
+    }
+
+    /**
+     * Sends the notification in the most compact format the watch supports.
+     */
+    private void send(Notification notification, Priority priority, String dedupeKey, long ttl) {
+        long start = System.nanoTime();
+        PooledBuffer buffer = PooledBuffer.obtain();
+        if ((mCapabilities & Notification.CAPABILITY_TLV) != 0)
+            notification.writeTlvTo(buffer);
+        else
+            notification.writeTo(mXmlWriter.setOutput(buffer));
+        send(buffer, priority, dedupeKey, ttl);
+        recordStage(NotificationPipeline.Stage.ENCODE, start);
+    }
+
+    private static void recordStage(NotificationPipeline.Stage stage, long start) {
+        NLService.recordStage(stage, System.nanoTime() - start);
+    }
+
+    /**
+     * Sends the notifications in a single message, for watches that support batches.
+     */
+    private void sendBatch(List<Notification> notifications) {
+        long start = System.nanoTime();
+        PooledBuffer buffer = PooledBuffer.obtain();
+        if ((mCapabilities & Notification.CAPABILITY_TLV) != 0)
+            Notification.writeTlvBatchTo(notifications, buffer);
+        else
+            Notification.writeBatchTo(notifications, mXmlWriter.setOutput(buffer));
+        send(buffer, Priority.NOTIFICATION, null, RECONNECT_GRACE_MS);
+        recordStage(NotificationPipeline.Stage.ENCODE, start);
+    }
+
+    /**
+     * Sends the encoded message, compressed if the watch supports it. Takes ownership of the buffer.
+     */
+    private void send(PooledBuffer buffer, Priority priority, String dedupeKey, long ttl) {
+        final int rawLength = buffer.size();
+        if ((mCapabilities & NotificationDeflater.CAPABILITY_DEFLATE) != 0) {
+            if (mDeflater == null)
+                mDeflater = new NotificationDeflater();
+            PooledBuffer frame = mDeflater.deflate(buffer);
+            if (frame != null) {
+                buffer.recycle();
+                buffer = frame;
+            }
+        }
+        mDevice.getTransportMetrics().recordEncoding(AsteroidUUIDS.NOTIFICATION_UPDATE_CHAR, rawLength, buffer.size());
+        mDevice.send(AsteroidUUIDS.NOTIFICATION_UPDATE_CHAR, buffer, this, priority, dedupeKey, ttl);
+    }
+
+    /**
+     * Sends a notification that NLService posted. If there is a batch, the notification is
+     * added to it instead, unless it is an alert.
+     */
+    private void post(NotificationEvent event, List<Notification> batch) {
+        long start = System.nanoTime();
+        String packageName = event.packageName;
+        NotificationPreferences.putPackageToSeen(mCtx, packageName);
+        NotificationPreferences.NotificationOption notificationOption =
+                NotificationPreferences.getNotificationPreferenceForApp(mCtx, packageName);
+        if (notificationOption == NotificationPreferences.NotificationOption.NO_NOTIFICATIONS) {
+            recordStage(NotificationPipeline.Stage.FILTER, start);
+            return;
+        }
+
+        int id = event.id;
+        String vibration;
+        if (notificationOption == NotificationPreferences.NotificationOption.SILENT_NOTIFICATION)
+            vibration = "none";
+        else if (notificationOption == null
+                || notificationOption == NotificationPreferences.NotificationOption.NORMAL_VIBRATION
+                || notificationOption == NotificationPreferences.NotificationOption.DEFAULT)
+            vibration = "normal";
+        else if (notificationOption == NotificationPreferences.NotificationOption.STRONG_VIBRATION)
+            vibration = "strong";
+        else if(notificationOption == NotificationPreferences.NotificationOption.RINGTONE_VIBRATION)
+            vibration = "ringtone";
+        else
+            throw new IllegalArgumentException("Not all options handled");
+
+        if (event.vibration != null)
+            vibration = event.vibration;
+
+        Notification notification = new Notification(
+                Notification.MsgType.POSTED,
+                packageName,
+                id,
+                event.appName,
+                event.appIcon,
+                event.summary,
+                event.body,
+                vibration);
+
+        // Ringing calls must not wait behind other notifications.
+        Priority priority = Priority.NOTIFICATION;
+        long ttl = RECONNECT_GRACE_MS;
+        if (Objects.equals(vibration, "ringtone")) {
+            priority = Priority.ALERT;
+            ttl = ALERT_TTL_MS;
+            mAlertIds.add(getContentKey(packageName, id));
+        }
+
+        // Silent updates and group re-sorting re-post what the watch already shows, which
+        // would only make it vibrate again.
+        if (mContentHashes.isDuplicate(getContentKey(packageName, id), notification.contentHash())) {
+            mDevice.getTransportMetrics().recordDuplicate(AsteroidUUIDS.NOTIFICATION_UPDATE_CHAR);
+            recordStage(NotificationPipeline.Stage.FILTER, start);
+            return;
+        }
+
+        // Downloads, navigation and chats post the same id over and over, mostly with
+        // a single field that changed.
+        Notification previous = mSent.put(getContentKey(packageName, id), notification);
+        recordStage(NotificationPipeline.Stage.FILTER, start);
+        if (batch != null && priority != Priority.ALERT)
+            batch.add(notification);
+        else if (previous != null && (mCapabilities & Notification.CAPABILITY_UPDATE) != 0)
+            // An update must not replace the insert it builds upon in the outbox, it goes away
+            // with it once a newer insert or the removal supersedes it.
+            send(notification.diff(previous), priority, getUpdateKey(packageName, id), ttl);
+        else
+            send(notification, priority, getDedupeKey(packageName, id), ttl);
+    }
+
+    private void onNotificationEvent(NotificationEvent event) {
+        if (event.type == NotificationEvent.Type.POSTED) {
+            post(event, null);
+        } else if (event.type == NotificationEvent.Type.BATCH) {
+            mDevice.setBulkTransfer(this, true);
+            mHandler.removeCallbacks(mEndBulkTransfer);
+            mHandler.postDelayed(mEndBulkTransfer, REFRESH_BULK_MS);
+            // Watches without batches get the notifications one by one, in the same order.
+            ArrayList<Notification> batch = (mCapabilities & Notification.CAPABILITY_BATCH) != 0 ? new ArrayList<>() : null;
+            for (NotificationEvent notification : event.notifications)
+                post(notification, batch);
+            if (batch != null && !batch.isEmpty())
+                sendBatch(batch);
+        } else if (event.type == NotificationEvent.Type.REMOVED) {
+            int id = event.id;
+            String contentKey = getContentKey(event.packageName, id);
+            mSent.remove(contentKey);
+            mContentHashes.remove(contentKey);
+            Priority priority = mAlertIds.remove(contentKey) ? Priority.ALERT : Priority.NOTIFICATION;
+
+            // The removal replaces a waiting post of the same notification.
+            send(new Notification(Notification.MsgType.REMOVED, id), priority, getDedupeKey(event.packageName, id), PendingWrite.DEFAULT_TTL_MS);
+        }
+    }
+
     class NotificationReceiver extends BroadcastReceiver {
         @Override
         public void onReceive(Context context, Intent intent) {
-            String event = intent.getStringExtra("event");
-            if (Objects.equals(event, "posted")) {
-                String packageName = intent.getStringExtra("packageName");
-                NotificationPreferences.putPackageToSeen(context, packageName);
-                NotificationPreferences.NotificationOption notificationOption =
-                        NotificationPreferences.getNotificationPreferenceForApp(context, packageName);
-                if (notificationOption == NotificationPreferences.NotificationOption.NO_NOTIFICATIONS)
-                    return;
-
-                int id = intent.getIntExtra("id", 0);
-                String appName = intent.getStringExtra("appName");
-                String appIcon = intent.getStringExtra("appIcon");
-                String summary = intent.getStringExtra("summary");
-                String body = intent.getStringExtra("body");
-                String vibration;
-                if (notificationOption == NotificationPreferences.NotificationOption.SILENT_NOTIFICATION)
-                    vibration = "none";
-                else if (notificationOption == null
-                        || notificationOption == NotificationPreferences.NotificationOption.NORMAL_VIBRATION
-                        || notificationOption == NotificationPreferences.NotificationOption.DEFAULT)
-                    vibration = "normal";
-                else if (notificationOption == NotificationPreferences.NotificationOption.STRONG_VIBRATION)
-                    vibration = "strong";
-                else if(notificationOption == NotificationPreferences.NotificationOption.RINGTONE_VIBRATION)
-                    vibration = "ringtone";
-                else
-                    throw new IllegalArgumentException("Not all options handled");
-
-                if(intent.hasExtra("vibration"))
-                    vibration = intent.getStringExtra("vibration");
-
-                Notification notification = new Notification(
-                        Notification.MsgType.POSTED,
-                        packageName,
-                        id,
-                        appName,
-                        appIcon,
-                        summary,
-                        body,
-                        vibration);
-
-                mDevice.send(AsteroidUUIDS.NOTIFICATION_UPDATE_CHAR, notification.toBytes(), NotificationService.this);
-            } else if (Objects.equals(event, "removed")) {
-                int id = intent.getIntExtra("id", 0);
-
-                mDevice.send(AsteroidUUIDS.NOTIFICATION_UPDATE_CHAR, new Notification(Notification.MsgType.REMOVED, id).toBytes(), NotificationService.this);
-            }
+            NotificationEvent event = NotificationEvent.fromIntent(intent);
+            if (event != null)
+                onNotificationEvent(event);
         }
     }
 }
@@ -144,6 +144,7 @@ public class ScreenshotService implements IConnectivityService {
                     );
                     notificationBuilder.setContentIntent(contentIntent);
                     mDownloading = false;
+                    mDevice.setBulkTransfer(ScreenshotService.this, false);
 
                     Notification notification = notificationBuilder.build();
                     mNM.notify(NOTIFICATION, notification);
@@ -166,6 +167,7 @@ public class ScreenshotService implements IConnectivityService {
 
     @Override
     public void unsync() {
+        mDevice.setBulkTransfer(this, false);
         if (mSReceiver != null) {
             try {
                 mCtx.unregisterReceiver(mSReceiver);
@@ -246,11 +248,26 @@ public class ScreenshotService implements IConnectivityService {
         return chars;
     }
 
+    @Override
+    public HashMap<UUID, WriteMode> getCharacteristicWriteModes() {
+        return new HashMap<>();
+    }
+
     @Override
     public UUID getServiceUUID() {
         return AsteroidUUIDS.SCREENSHOT_SERVICE_UUID;
     }
 
+    @Override
+    public Priority getPriority() {
+        return Priority.MEDIA;
+    }
+
+    @Override
+    public int getWeight() {
+        return 1;
+    }
+
     class ScreenshotReqReceiver extends BroadcastReceiver {
         @Override
         public void onReceive(Context context, Intent intent) {
@@ -258,6 +275,8 @@ public class ScreenshotService implements IConnectivityService {
                 mFirstNotify = true;
                 mDownloading = true;
                 byte[] data = new byte[1];
+                // The screenshot arrives as a stream of notifications, a fast link makes it a lot quicker.
+                mDevice.setBulkTransfer(ScreenshotService.this, true);
                 mDevice.send(AsteroidUUIDS.SCREENSHOT_REQUEST, data, ScreenshotService.this);
             }
         }
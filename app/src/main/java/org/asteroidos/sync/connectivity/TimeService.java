@@ -30,6 +30,7 @@ import android.os.SystemClock;
 
 import org.asteroidos.sync.asteroid.IAsteroidDevice;
 import org.asteroidos.sync.utils.AsteroidUUIDS;
+import org.asteroidos.sync.utils.WireFormat;
 
 import java.util.Calendar;
 import java.util.HashMap;
@@ -90,14 +91,7 @@ public class TimeService implements IConnectivityService, SharedPreferences.OnSh
 
     private void updateTime() {
         if(mTimeSyncSettings.getBoolean(PREFS_SYNC_TIME, PREFS_SYNC_TIME_DEFAULT)) {
-            byte[] data = new byte[6];
-            Calendar c =  Calendar.getInstance();
-            data[0] = (byte)(c.get(Calendar.YEAR) - 1900);
-            data[1] = (byte)(c.get(Calendar.MONTH));
-            data[2] = (byte)(c.get(Calendar.DAY_OF_MONTH));
-            data[3] = (byte)(c.get(Calendar.HOUR_OF_DAY));
-            data[4] = (byte)(c.get(Calendar.MINUTE));
-            data[5] = (byte)(c.get(Calendar.SECOND));
+            byte[] data = WireFormat.packTime(Calendar.getInstance());
 
             mDevice.send(AsteroidUUIDS.TIME_SET_CHAR, data, TimeService.this);
         }
@@ -123,11 +117,29 @@ public class TimeService implements IConnectivityService, SharedPreferences.OnSh
         return map;
     }
 
+    @Override
+    public final HashMap<UUID, WriteMode> getCharacteristicWriteModes() {
+        HashMap<UUID, WriteMode> map = new HashMap<>();
+        map.put(AsteroidUUIDS.TIME_SET_CHAR, WriteMode.LAST_VALUE_WINS);
+        return map;
+    }
+
     @Override
     public final UUID getServiceUUID() {
         return AsteroidUUIDS.TIME_SERVICE_UUID;
     }
 
+    @Override
+    public final Priority getPriority() {
+        return Priority.BACKGROUND;
+    }
+
+    // Setting the clock is a single short write, it should not wait behind a weather push.
+    @Override
+    public final int getWeight() {
+        return 2;
+    }
+
     class TimeSyncReqReceiver extends BroadcastReceiver {
         @Override
         public final void onReceive(Context context, Intent intent) {
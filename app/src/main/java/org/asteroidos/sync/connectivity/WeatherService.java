@@ -34,10 +34,10 @@ import android.util.Log;
 import org.asteroidos.sync.asteroid.IAsteroidDevice;
 import org.asteroidos.sync.services.GPSTracker;
 import org.asteroidos.sync.utils.AsteroidUUIDS;
+import org.asteroidos.sync.utils.WireFormat;
 import org.osmdroid.config.Configuration;
 
 import java.nio.charset.StandardCharsets;
-import java.util.Calendar;
 import java.util.HashMap;
 import java.util.UUID;
 
@@ -181,39 +181,31 @@ public class WeatherService implements IConnectivityService {
                 byte[] city = {};
                 if(cityName != null)
                     city = cityName.getBytes(StandardCharsets.UTF_8);
-                final byte[] ids = new byte[10];
-                final byte[] maxTemps = new byte[10];
-                final byte[] minTemps = new byte[10];
-
-                int currentDay, i=0;
-
-                try {
-                    for (int j = 0; j < 5; j++) { // For each day of forecast
-                        currentDay = dayOfTimestamp(Long.parseLong(l[i].getDt()));
-                        short min = Short.MAX_VALUE;
-                        short max = Short.MIN_VALUE;
-                        int id = 0;
-                        while (i < l.length && dayOfTimestamp(Long.parseLong(l[i].getDt())) == currentDay) { // For each data point of the day
-                            // TODO is there a better way to select the most significant ID than the first of the afternoon ?
-                            if (hourOfTimestamp(Long.parseLong(l[i].getDt())) >= 12 && id == 0)
-                                id = Short.parseShort(l[i].getWeather()[0].getId());
-
-                            short currentTemp = (short) Math.round(Float.parseFloat(l[i].getMain().getTemp()));
-                            if (currentTemp > max) max = currentTemp;
-                            if (currentTemp < min) min = currentTemp;
-
-                            currentDay = dayOfTimestamp(Long.parseLong(l[i].getDt()));
-                            i = i + 1;
-                        }
-
-                        ids[2 * j] = (byte) (id >> 8);
-                        ids[2 * j + 1] = (byte) id;
-                        maxTemps[2 * j] = (byte) (max >> 8);
-                        maxTemps[2 * j + 1] = (byte) max;
-                        minTemps[2 * j] = (byte) (min >> 8);
-                        minTemps[2 * j + 1] = (byte) min;
+                final byte[] ids = new byte[2 * WireFormat.FORECAST_DAYS];
+                final byte[] maxTemps = new byte[2 * WireFormat.FORECAST_DAYS];
+                final byte[] minTemps = new byte[2 * WireFormat.FORECAST_DAYS];
+
+                WireFormat.packForecast(new WireFormat.ForecastSource() {
+                    @Override
+                    public int size() {
+                        return l.length;
                     }
-                } catch(java.lang.ArrayIndexOutOfBoundsException ignored) {}
+
+                    @Override
+                    public long getTimestamp(int index) {
+                        return Long.parseLong(l[index].getDt());
+                    }
+
+                    @Override
+                    public short getWeatherId(int index) {
+                        return Short.parseShort(l[index].getWeather()[0].getId());
+                    }
+
+                    @Override
+                    public float getTemperature(int index) {
+                        return Float.parseFloat(l[index].getMain().getTemp());
+                    }
+                }, ids, minTemps, maxTemps);
 
                 mDevice.send(AsteroidUUIDS.WEATHER_CITY_CHAR, city, WeatherService.this);
                 mDevice.send(AsteroidUUIDS.WEATHER_IDS_CHAR, ids, WeatherService.this);
@@ -227,18 +219,6 @@ public class WeatherService implements IConnectivityService {
         });
     }
 
-    private int dayOfTimestamp(long timestamp) {
-        Calendar cal = Calendar.getInstance();
-        cal.setTimeInMillis(timestamp*1000);
-        return cal.get(Calendar.DAY_OF_WEEK);
-    }
-
-    private int hourOfTimestamp(long timestamp) {
-        Calendar cal = Calendar.getInstance();
-        cal.setTimeInMillis(timestamp*1000);
-        return cal.get(Calendar.HOUR_OF_DAY);
-    }
-
     @Override
     public HashMap<UUID, Direction> getCharacteristicUUIDs() {
         HashMap<UUID, Direction> chars = new HashMap<>();
@@ -249,11 +229,31 @@ public class WeatherService implements IConnectivityService {
         return chars;
     }
 
+    @Override
+    public HashMap<UUID, WriteMode> getCharacteristicWriteModes() {
+        HashMap<UUID, WriteMode> chars = new HashMap<>();
+        chars.put(AsteroidUUIDS.WEATHER_CITY_CHAR, WriteMode.LAST_VALUE_WINS);
+        chars.put(AsteroidUUIDS.WEATHER_IDS_CHAR, WriteMode.LAST_VALUE_WINS);
+        chars.put(AsteroidUUIDS.WEATHER_MIN_TEMPS_CHAR, WriteMode.LAST_VALUE_WINS);
+        chars.put(AsteroidUUIDS.WEATHER_MAX_TEMPS_CHAR, WriteMode.LAST_VALUE_WINS);
+        return chars;
+    }
+
     @Override
     public UUID getServiceUUID() {
         return AsteroidUUIDS.WEATHER_SERVICE_UUID;
     }
 
+    @Override
+    public Priority getPriority() {
+        return Priority.BACKGROUND;
+    }
+
+    @Override
+    public int getWeight() {
+        return 1;
+    }
+
     class WeatherSyncReqReceiver extends BroadcastReceiver {
         @Override
         public void onReceive(Context context, Intent intent) {
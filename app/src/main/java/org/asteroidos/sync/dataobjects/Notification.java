@@ -18,9 +18,45 @@
 
 package org.asteroidos.sync.dataobjects;
 
+import org.asteroidos.sync.utils.PooledBuffer;
+import org.asteroidos.sync.utils.XmlWriter;
+
 import java.nio.charset.StandardCharsets;
+import java.util.List;
 
 public class Notification {
+    // Bit in the notification capabilities the watch announces, see writeTlvTo().
+    public static final int CAPABILITY_TLV = 2;
+    public static final byte FRAME_TLV = 0x02;
+    public static final byte TLV_VERSION = 1;
+    // Bit in the notification capabilities the watch announces, see diff().
+    public static final int CAPABILITY_UPDATE = 4;
+    // Bit in the notification capabilities the watch announces, see writeBatchTo().
+    public static final int CAPABILITY_BATCH = 8;
+    // Message type of a batch in the TLV format, far from the MsgType ordinals.
+    static final int TLV_TYPE_BATCH = 0x7F;
+
+    // Budgets for the encoded fields, longer fields are cut. The watch cannot show more of the
+    // body than this anyway, and every 500 bytes are another write on the link.
+    public static final int MAX_PACKAGE_NAME_BYTES = 256;
+    public static final int MAX_VIBRATION_BYTES = 32;
+    public static final int MAX_APP_NAME_BYTES = 128;
+    public static final int MAX_APP_ICON_BYTES = 64;
+    public static final int MAX_SUMMARY_BYTES = 512;
+    public static final int MAX_BODY_BYTES = 4096;
+
+    // Field tags of the TLV format. Watches skip tags they do not know.
+    static final int FIELD_PACKAGE_NAME = 1;
+    static final int FIELD_VIBRATION = 2;
+    static final int FIELD_APP_NAME = 3;
+    static final int FIELD_APP_ICON = 4;
+    static final int FIELD_SUMMARY = 5;
+    static final int FIELD_BODY = 6;
+    // Vibrations that have no code in VIBRATIONS are sent by name.
+    static final int FIELD_VIBRATION_NAME = 7;
+    // The index is the code of the vibration in FIELD_VIBRATION.
+    static final String[] VIBRATIONS = {"none", "normal", "strong", "ringtone"};
+
     String packageName, appName, appIcon, summary, body, vibration = "";
     final MsgType msgType;
     final int id;
@@ -41,44 +77,195 @@ public class Notification {
         this.id = id;
     }
 
+    /***
+     * @return a 64 bit FNV-1a hash of what the user sees of the notification: the app name,
+     * the summary and the body
+     */
+    public final long contentHash() {
+        long hash = 0xcbf29ce484222325L;
+        hash = hash(hash, appName);
+        hash = hash(hash, summary);
+        hash = hash(hash, body);
+        return hash;
+    }
+
+    private static long hash(long hash, String value) {
+        if (value != null) {
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                hash = (hash ^ (c & 0xFF)) * 0x100000001b3L;
+                hash = (hash ^ (c >>> 8)) * 0x100000001b3L;
+            }
+        }
+        // Separates the fields, so that "ab" and "" do not hash like "a" and "b".
+        return (hash ^ 0xFFFF) * 0x100000001b3L;
+    }
+
+    /***
+     * @return an update that only carries the fields that differ from the notification that was
+     * sent before with the same id, for watches that announce {@link #CAPABILITY_UPDATE}. A field
+     * that is present but empty was cleared.
+     */
+    public final Notification diff(Notification previous) {
+        Notification update = new Notification(MsgType.UPDATED, id);
+        update.packageName = changed(previous.packageName, packageName);
+        update.appName = changed(previous.appName, appName);
+        update.appIcon = changed(previous.appIcon, appIcon);
+        update.summary = changed(previous.summary, summary);
+        update.body = changed(previous.body, body);
+        update.vibration = changed(previous.vibration, vibration);
+        return update;
+    }
+
+    private static String changed(String previous, String current) {
+        if (current == null)
+            current = "";
+        return current.equals(previous == null ? "" : previous) ? null : current;
+    }
+
     /***
      * @return XML serialized {@link Notification}
      */
     public final String toXML() {
-        String xmlRequest = "";
-
-        if (msgType == MsgType.POSTED) {
-            xmlRequest = "<insert><id>" + id + "</id>";
-            if (!packageName.isEmpty())
-                xmlRequest += "<pn>" + packageName + "</pn>";
-            if (!vibration.isEmpty())
-                xmlRequest += "<vb>" + vibration + "</vb>";
-            if (!appName.isEmpty())
-                xmlRequest += "<an>" + appName + "</an>";
-            if (!appIcon.isEmpty())
-                xmlRequest += "<ai>" + appIcon + "</ai>";
-            if (!summary.isEmpty())
-                xmlRequest += "<su>" + summary + "</su>";
-            if (!body.isEmpty())
-                xmlRequest += "<bo>" + body + "</bo>";
-            xmlRequest += "</insert>";
+        PooledBuffer buffer = PooledBuffer.obtain();
+        writeTo(buffer);
+        String xml = new String(buffer.array(), 0, buffer.size(), StandardCharsets.UTF_8);
+        buffer.recycle();
+        return xml;
+    }
+
+    /***
+     * @return Returns {@link Notification#toXML()} as byte[] for BLE transmission
+     */
+    public final byte[] toBytes() {
+        PooledBuffer buffer = PooledBuffer.obtain();
+        writeTo(buffer);
+        byte[] bytes = buffer.toByteArray();
+        buffer.recycle();
+        return bytes;
+    }
+
+    /***
+     * Encodes the XML serialized {@link Notification} as UTF-8 straight into the buffer,
+     * without building the XML string first.
+     */
+    public final void writeTo(PooledBuffer out) {
+        writeTo(new XmlWriter(out));
+    }
+
+    /***
+     * Encodes the XML serialized {@link Notification} with the writer. Fields that are longer
+     * than their budget are truncated.
+     */
+    public final void writeTo(XmlWriter out) {
+        if (msgType == MsgType.POSTED || msgType == MsgType.UPDATED) {
+            final String root = msgType == MsgType.POSTED ? "insert" : "update";
+            out.startTag(root).startTag("id").decimal(id).endTag("id");
+            writeElement(out, "pn", packageName, MAX_PACKAGE_NAME_BYTES);
+            writeElement(out, "vb", vibration, MAX_VIBRATION_BYTES);
+            writeElement(out, "an", appName, MAX_APP_NAME_BYTES);
+            writeElement(out, "ai", appIcon, MAX_APP_ICON_BYTES);
+            writeElement(out, "su", summary, MAX_SUMMARY_BYTES);
+            writeElement(out, "bo", body, MAX_BODY_BYTES);
+            out.endTag(root);
         } else if (msgType == MsgType.REMOVED) {
-            xmlRequest = "<removed>" +
-                    "<id>" + id + "</id>" +
-                    "</removed>";
+            out.startTag("removed").startTag("id").decimal(id).endTag("id").endTag("removed");
         }
+    }
 
-        return xmlRequest;
+    /***
+     * Encodes the notifications as a single XML message, for watches that announce
+     * {@link #CAPABILITY_BATCH}: a batch element with one insert per notification, in order.
+     */
+    public static void writeBatchTo(List<Notification> notifications, XmlWriter out) {
+        out.startTag("batch");
+        for (Notification notification : notifications)
+            notification.writeTo(out);
+        out.endTag("batch");
     }
 
     /***
-     * @return Returns {@link Notification#toXML()} as byte[] for BLE transmission
+     * Encodes the notifications as a single TLV message, for watches that announce
+     * {@link #CAPABILITY_BATCH}. The frame is {@link #FRAME_TLV}, {@link #TLV_VERSION},
+     * {@link #TLV_TYPE_BATCH} and the number of notifications as varint, followed by every
+     * notification as its length as varint and its own TLV frame.
      */
-    public final byte[] toBytes() {
-        return this.toXML().getBytes(StandardCharsets.UTF_8);
+    public static void writeTlvBatchTo(List<Notification> notifications, PooledBuffer out) {
+        out.write(FRAME_TLV);
+        out.write(TLV_VERSION);
+        out.write(TLV_TYPE_BATCH);
+        out.writeVarint(notifications.size());
+        PooledBuffer entry = PooledBuffer.obtain();
+        for (Notification notification : notifications) {
+            entry.reset();
+            notification.writeTlvTo(entry);
+            out.writeVarint(entry.size());
+            out.write(entry.array(), 0, entry.size());
+        }
+        entry.recycle();
+    }
+
+    /***
+     * Encodes the {@link Notification} in the binary TLV format, for watches that announce
+     * {@link #CAPABILITY_TLV}.
+     *
+     * The frame is {@link #FRAME_TLV}, {@link #TLV_VERSION}, the {@link MsgType} ordinal and the
+     * zigzag encoded id as varint. A posted notification is followed by its fields, each a tag
+     * byte, the length of the value as varint and the value. Text is UTF-8, the vibration is
+     * its index in {@link #VIBRATIONS}. Fields that are empty are left out. An update has the
+     * same layout with only the fields that changed.
+     */
+    public final void writeTlvTo(PooledBuffer out) {
+        out.write(FRAME_TLV);
+        out.write(TLV_VERSION);
+        out.write(msgType.ordinal());
+        out.writeVarint((id << 1) ^ (id >> 31));
+        if (msgType == MsgType.REMOVED)
+            return;
+        writeField(out, FIELD_PACKAGE_NAME, packageName, MAX_PACKAGE_NAME_BYTES);
+        int vibrationCode = vibrationCode(vibration);
+        if (vibrationCode >= 0) {
+            out.write(FIELD_VIBRATION);
+            out.writeVarint(1);
+            out.write(vibrationCode);
+        } else {
+            writeField(out, FIELD_VIBRATION_NAME, vibration, MAX_VIBRATION_BYTES);
+        }
+        writeField(out, FIELD_APP_NAME, appName, MAX_APP_NAME_BYTES);
+        writeField(out, FIELD_APP_ICON, appIcon, MAX_APP_ICON_BYTES);
+        writeField(out, FIELD_SUMMARY, summary, MAX_SUMMARY_BYTES);
+        writeField(out, FIELD_BODY, body, MAX_BODY_BYTES);
+    }
+
+    private static int vibrationCode(String vibration) {
+        for (int i = 0; i < VIBRATIONS.length; i++)
+            if (VIBRATIONS[i].equals(vibration))
+                return i;
+        return -1;
+    }
+
+    // Inserts leave out empty fields, updates only leave out the fields that did not change.
+    private boolean isPresent(String value) {
+        return msgType == MsgType.UPDATED ? value != null : value != null && !value.isEmpty();
+    }
+
+    private void writeElement(XmlWriter out, String name, String value, int maxBytes) {
+        if (!isPresent(value))
+            return;
+        out.startTag(name);
+        out.text(value, maxBytes);
+        out.endTag(name);
+    }
+
+    private void writeField(PooledBuffer out, int tag, String value, int maxBytes) {
+        if (!isPresent(value))
+            return;
+        out.write(tag);
+        out.writeLengthPrefixedUtf8(value, maxBytes);
     }
 
+    // The ordinal is sent in the TLV format, new types go at the end.
     public enum MsgType {
-        POSTED, REMOVED
+        POSTED, REMOVED, UPDATED
     }
 }
@@ -0,0 +1,147 @@
+/*
+ * AsteroidOSSync
+ * Copyright (c) 2023 AsteroidOS
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.asteroidos.sync.dataobjects;
+
+import android.content.Intent;
+import android.os.Bundle;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * A notification that was posted or removed on the phone, on its way to the NotificationService.
+ * Events are immutable, they are handed from the producer threads to the main thread without
+ * copying, see NotificationBus.
+ */
+public final class NotificationEvent {
+    public static final String ACTION = "org.asteroidos.sync.NOTIFICATION_LISTENER";
+
+    public enum Type {
+        POSTED,
+        REMOVED,
+        // All active notifications after a refresh, the most recent first.
+        BATCH
+    }
+
+    public final Type type;
+    public final String packageName;
+    public final int id;
+    public final String appName;
+    public final String appIcon;
+    public final String summary;
+    public final String body;
+    // Null unless the producer chose the vibration instead of the preferences of the app.
+    public final String vibration;
+    // Only set for BATCH.
+    public final List<NotificationEvent> notifications;
+
+    private NotificationEvent(Type type, String packageName, int id, String appName, String appIcon,
+                              String summary, String body, String vibration, List<NotificationEvent> notifications) {
+        this.type = type;
+        this.packageName = packageName;
+        this.id = id;
+        this.appName = appName;
+        this.appIcon = appIcon;
+        this.summary = summary;
+        this.body = body;
+        this.vibration = vibration;
+        this.notifications = notifications;
+    }
+
+    public static NotificationEvent posted(String packageName, int id, String appName, String appIcon,
+                                           String summary, String body, String vibration) {
+        return new NotificationEvent(Type.POSTED, packageName, id, appName, appIcon, summary, body, vibration, null);
+    }
+
+    public static NotificationEvent removed(String packageName, int id) {
+        return new NotificationEvent(Type.REMOVED, packageName, id, null, null, null, null, null, null);
+    }
+
+    public static NotificationEvent batch(List<NotificationEvent> notifications) {
+        return new NotificationEvent(Type.BATCH, null, 0, null, null, null, null, null,
+                Collections.unmodifiableList(new ArrayList<>(notifications)));
+    }
+
+    /**
+     * @return the broadcast for receivers in other processes, see fromIntent()
+     */
+    public Intent toIntent() {
+        Intent i = new Intent(ACTION);
+        i.putExtra("event", type.name().toLowerCase());
+        if (type == Type.BATCH) {
+            ArrayList<Bundle> bundles = new ArrayList<>(notifications.size());
+            for (NotificationEvent notification : notifications)
+                bundles.add(notification.toBundle());
+            i.putParcelableArrayListExtra("notifications", bundles);
+        } else {
+            i.putExtras(toBundle());
+        }
+        return i;
+    }
+
+    /**
+     * @return the event of a broadcast, or null if the broadcast is not understood
+     */
+    public static NotificationEvent fromIntent(Intent intent) {
+        String event = intent.getStringExtra("event");
+        if (Objects.equals(event, "posted")) {
+            return fromBundle(Type.POSTED, intent.getExtras());
+        } else if (Objects.equals(event, "removed")) {
+            return removed(intent.getStringExtra("packageName"), intent.getIntExtra("id", 0));
+        } else if (Objects.equals(event, "batch")) {
+            ArrayList<Bundle> bundles = intent.getParcelableArrayListExtra("notifications");
+            if (bundles == null)
+                return null;
+            ArrayList<NotificationEvent> notifications = new ArrayList<>(bundles.size());
+            for (Bundle bundle : bundles)
+                notifications.add(fromBundle(Type.POSTED, bundle));
+            return batch(notifications);
+        }
+        return null;
+    }
+
+    private Bundle toBundle() {
+        Bundle extras = new Bundle();
+        extras.putString("packageName", packageName);
+        extras.putInt("id", id);
+        if (type == Type.POSTED) {
+            extras.putString("appName", appName);
+            extras.putString("appIcon", appIcon);
+            extras.putString("summary", summary);
+            extras.putString("body", body);
+            if (vibration != null)
+                extras.putString("vibration", vibration);
+        }
+        return extras;
+    }
+
+    private static NotificationEvent fromBundle(Type type, Bundle extras) {
+        return new NotificationEvent(type,
+                extras.getString("packageName"),
+                extras.getInt("id", 0),
+                extras.getString("appName"),
+                extras.getString("appIcon"),
+                extras.getString("summary"),
+                extras.getString("body"),
+                extras.getString("vibration"),
+                null);
+    }
+}
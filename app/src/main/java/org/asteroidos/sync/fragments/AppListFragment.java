@@ -30,6 +30,7 @@ import android.view.ViewGroup;
 import android.widget.ListView;
 
 import org.asteroidos.sync.MainActivity;
+import org.asteroidos.sync.NotificationPreferences;
 import org.asteroidos.sync.R;
 import org.asteroidos.sync.adapters.AppInfoAdapter;
 
@@ -58,4 +59,10 @@ public class AppListFragment extends Fragment {
         placeholder = view.findViewById(R.id.no_notification_placeholder);
         adapter.getFilter().filter("", count -> placeholder.setVisibility(count == 0 ? View.VISIBLE : View.INVISIBLE));
     }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+        NotificationPreferences.flush();
+    }
 }
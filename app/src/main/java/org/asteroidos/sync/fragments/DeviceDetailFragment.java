@@ -19,6 +19,7 @@
 package org.asteroidos.sync.fragments;
 
 import android.annotation.SuppressLint;
+import android.app.AlertDialog;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
@@ -44,7 +45,9 @@ import org.asteroidos.sync.R;
 import org.asteroidos.sync.asteroid.IAsteroidDevice;
 import org.asteroidos.sync.connectivity.SilentModeService;
 import org.asteroidos.sync.connectivity.TimeService;
+import org.asteroidos.sync.dataobjects.NotificationEvent;
 import org.asteroidos.sync.services.PhoneStateReceiver;
+import org.asteroidos.sync.utils.NotificationBus;
 
 public class DeviceDetailFragment extends Fragment {
     private TextView mDisconnectedText;
@@ -68,6 +71,7 @@ public class DeviceDetailFragment extends Fragment {
     private DeviceDetailFragment.OnAppSettingsClickedListener mAppSettingsListener;
     private DeviceDetailFragment.OnWeatherSettingsClickedListener mWeatherSettingsListener;
     private DeviceDetailFragment.OnUpdateListener mUpdateListener;
+    private DeviceDetailFragment.OnMetricsRequestedListener mMetricsListener;
 
 
     @Override
@@ -111,20 +115,12 @@ public class DeviceDetailFragment extends Fragment {
 
         CardView findCard = view.findViewById(R.id.card_view2);
         findCard.setOnClickListener(FindCardView -> {
-            Intent iremove = new Intent("org.asteroidos.sync.NOTIFICATION_LISTENER");
-            iremove.putExtra("event", "removed");
-            iremove.putExtra("id", 0xa57e401d);
-            requireActivity().sendBroadcast(iremove);
-
-            Intent ipost = new Intent("org.asteroidos.sync.NOTIFICATION_LISTENER");
-            ipost.putExtra("event", "posted");
-            ipost.putExtra("packageName", "org.asteroidos.sync.findmywatch");
-            ipost.putExtra("id", 0xa57e401d);
-            ipost.putExtra("appName", getString(R.string.app_name));
-            ipost.putExtra("appIcon", "ios-watch-vibrating");
-            ipost.putExtra("summary", getString(R.string.watch_finder));
-            ipost.putExtra("body", getString(R.string.phone_is_searching));
-            requireActivity().sendBroadcast(ipost);
+            NotificationBus.send(requireActivity(),
+                    NotificationEvent.removed("org.asteroidos.sync.findmywatch", 0xa57e401d));
+            NotificationBus.send(requireActivity(),
+                    NotificationEvent.posted("org.asteroidos.sync.findmywatch", 0xa57e401d,
+                            getString(R.string.app_name), "ios-watch-vibrating",
+                            getString(R.string.watch_finder), getString(R.string.phone_is_searching), null));
         });
 
         CardView screenshotCard = view.findViewById(R.id.card_view3);
@@ -174,6 +170,8 @@ public class DeviceDetailFragment extends Fragment {
     public boolean onOptionsItemSelected(MenuItem menuItem) {
         if (menuItem.getItemId() == R.id.unpairButton)
             mDeviceListener.onDefaultDeviceUnselected();
+        else if (menuItem.getItemId() == R.id.metricsButton)
+            mMetricsListener.onMetricsRequested();
 
         return (super.onOptionsItemSelected(menuItem));
     }
@@ -216,6 +214,25 @@ public class DeviceDetailFragment extends Fragment {
         }
     }
 
+    public void showMetrics(String metrics) {
+        if (!isAdded())
+            return;
+        AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
+        builder.setTitle(R.string.transport_metrics);
+        builder.setMessage(metrics);
+        builder.setPositiveButton(R.string.share, (dialog, which) -> {
+            Intent intent = new Intent(Intent.ACTION_SEND);
+            intent.setType("text/plain");
+            intent.putExtra(Intent.EXTRA_SUBJECT, getString(R.string.transport_metrics));
+            intent.putExtra(Intent.EXTRA_TEXT, metrics);
+            startActivity(Intent.createChooser(intent, getString(R.string.share)));
+        });
+        builder.setNegativeButton(R.string.close, ((dialog, which) -> dialog.cancel()));
+
+        AlertDialog dialog = builder.create();
+        dialog.show();
+    }
+
     public void scanningStarted() {
         if (mStatus == IAsteroidDevice.ConnectionState.STATUS_DISCONNECTED)
             mDisconnectedText.setText(R.string.scanning);
@@ -258,6 +275,12 @@ public class DeviceDetailFragment extends Fragment {
         else
             throw new ClassCastException(context
                     + " does not implement DeviceDetailFragment.onUpdateListener");
+
+        if (context instanceof DeviceDetailFragment.OnMetricsRequestedListener)
+            mMetricsListener = (DeviceDetailFragment.OnMetricsRequestedListener) context;
+        else
+            throw new ClassCastException(context
+                    + " does not implement DeviceDetailFragment.OnMetricsRequestedListener");
     }
 
     /* Notifies MainActivity when a device unpairing is requested */
@@ -282,4 +305,8 @@ public class DeviceDetailFragment extends Fragment {
         void onUpdateRequested();
     }
 
+    public interface OnMetricsRequestedListener {
+        void onMetricsRequested();
+    }
+
 }
@@ -26,24 +26,68 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
-import android.os.Build;
 import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.service.notification.NotificationListenerService;
 import android.service.notification.StatusBarNotification;
+import android.util.Log;
 
 import androidx.core.app.NotificationCompat;
 
+import org.asteroidos.sync.NotificationPreferences;
+import org.asteroidos.sync.dataobjects.NotificationEvent;
+import org.asteroidos.sync.utils.BodyShaper;
+import org.asteroidos.sync.utils.IconTable;
+import org.asteroidos.sync.utils.NotificationBus;
 import org.asteroidos.sync.utils.NotificationParser;
+import org.asteroidos.sync.utils.NotificationPipeline;
 
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Hashtable;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 public class NLService extends NotificationListenerService {
+    public static final String TAG = NLService.class.toString();
+    // Notifications per refresh broadcast. Long chats are large, a broadcast has to stay well
+    // below the binder transaction limit.
+    private static final int REFRESH_BATCH_SIZE = 16;
+    // Gives the notifications that arrive with a reconnect a moment to settle before a refresh.
+    private static final long REFRESH_DELAY_MS = 500;
+    // Refreshes that wait longer for the listener to connect ask for a rebind, they stay pending.
+    private static final long LISTENER_TIMEOUT_MS = 10000;
+    // Parsing workers, the jobs of one notification always run on the same worker.
+    private static final int PIPELINE_STRIPES = 2;
+    // Queued jobs per worker before low priority posts are dropped.
+    private static final int PIPELINE_CAPACITY = 32;
+    // Application labels kept, about the number of apps that post notifications.
+    private static final int APP_LABEL_CACHE_SIZE = 64;
+    // Bodies are cut to this many bytes, about a screen of text on the watch and two chunks.
+    private static final int BODY_BUDGET_BYTES = 1024;
+    private static final BodyShaper sBodyShaper = new BodyShaper(BODY_BUDGET_BYTES);
+    private static volatile long sTimeToReady = -1;
+    private static volatile NotificationPipeline sPipeline;
     private NLServiceReceiver nlServiceReceiver;
-    private Map<String, String> iconFromPackage;
+    private PackageChangeReceiver packageChangeReceiver;
+    // Labels by package name, looking them up is a binder call to the package manager for
+    // every post of a chatty app otherwise.
+    private final Map<String, String> mAppLabels = Collections.synchronizedMap(
+            new LinkedHashMap<String, String>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                    return size() > APP_LABEL_CACHE_SIZE;
+                }
+            });
     private volatile boolean listenerConnected = false;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mReadyTimeout = this::onReadyTimeout;
+    // Uptime at which the first refresh that waits for the listener was requested, 0 if none waits.
+    // Only accessed on the main looper.
+    private long mRefreshRequested = 0;
 
     @Override
     public void onCreate() {
@@ -52,195 +96,283 @@ public class NLService extends NotificationListenerService {
         IntentFilter filter = new IntentFilter();
         filter.addAction("org.asteroidos.sync.NOTIFICATION_LISTENER_SERVICE");
         registerReceiver(nlServiceReceiver, filter);
+        sPipeline = new NotificationPipeline(PIPELINE_STRIPES, PIPELINE_CAPACITY);
 
-        iconFromPackage = new Hashtable<>();
-        iconFromPackage.put("code.name.monkey.retromusic", "ios-musical-notes");
-        iconFromPackage.put("com.android.chrome", "logo-chrome");
-        iconFromPackage.put("com.android.dialer", "ios-call");
-        iconFromPackage.put("com.android.mms", "ios-text");
-        iconFromPackage.put("com.android.vending", "md-appstore");
-        iconFromPackage.put("com.chrome.beta", "logo-chrome");
-        iconFromPackage.put("com.chrome.dev", "logo-chrome");
-        iconFromPackage.put("com.devhd.feedly", "logo-rss");
-        iconFromPackage.put("com.dropbox.android", "logo-dropbox");
-        iconFromPackage.put("com.facebook.groups", "logo-facebook");
-        iconFromPackage.put("com.facebook.katana", "logo-facebook");
-        iconFromPackage.put("com.facebook.Mentions", "logo-facebook");
-        iconFromPackage.put("com.facebook.orca", "ios-text");
-        iconFromPackage.put("com.facebook.work", "logo-facebook");
-        iconFromPackage.put("com.google.android.apps.docs.editors.docs", "ios-document");
-        iconFromPackage.put("com.google.android.apps.giant", "md-analytics");
-        iconFromPackage.put("com.google.android.apps.maps", "ios-map");
-        iconFromPackage.put("com.google.android.apps.messaging", "ios-text");
-        iconFromPackage.put("com.google.android.apps.photos", "ios-images");
-        iconFromPackage.put("com.google.android.apps.plus", "logo-googleplus");
-        iconFromPackage.put("com.google.android.calendar", "ios-calendar");
-        iconFromPackage.put("com.google.android.contacts", "ios-contacts");
-        iconFromPackage.put("com.google.android.dialer", "ios-call");
-        iconFromPackage.put("com.google.android.gm", "ios-mail");
-        iconFromPackage.put("com.google.android.googlequicksearchbox", "logo-google");
-        iconFromPackage.put("com.google.android.music", "ios-musical-notes");
-        iconFromPackage.put("com.google.android.talk", "ios-quote");
-        iconFromPackage.put("com.google.android.videos", "ios-film");
-        iconFromPackage.put("com.google.android.youtube", "logo-youtube");
-        iconFromPackage.put("com.instagram.android", "logo-instagram");
-        iconFromPackage.put("com.instagram.boomerang", "logo-instagram");
-        iconFromPackage.put("com.instagram.layout", "logo-instagram");
-        iconFromPackage.put("com.jb.gosms", "ios-text");
-        iconFromPackage.put("com.joelapenna.foursquared", "logo-foursquare");
-        iconFromPackage.put("com.keylesspalace.tusky", "md-mastodon");
-        iconFromPackage.put("com.keylesspalace.tusky.test", "md-mastodon");
-        iconFromPackage.put("com.linkedin.android.jobs.jobseeker", "logo-linkedin");
-        iconFromPackage.put("com.linkedin.android.learning", "logo-linkedin");
-        iconFromPackage.put("com.linkedin.android", "logo-linkedin");
-        iconFromPackage.put("com.linkedin.android.salesnavigator", "logo-linkedin");
-        iconFromPackage.put("com.linkedin.Coworkers", "logo-linkedin");
-        iconFromPackage.put("com.linkedin.leap", "logo-linkedin");
-        iconFromPackage.put("com.linkedin.pulse", "logo-linkedin");
-        iconFromPackage.put("com.linkedin.recruiter", "logo-linkedin");
-        iconFromPackage.put("com.mattermost.rnbeta", "logo-mattermost");
-        iconFromPackage.put("com.mattermost.rn", "logo-mattermost");
-        iconFromPackage.put("com.maxfour.music", "ios-musical-notes");
-        iconFromPackage.put("com.microsoft.office.lync15", "logo-skype");
-        iconFromPackage.put("com.microsoft.xboxone.smartglass.beta", "logo-xbox");
-        iconFromPackage.put("com.microsoft.xboxone.smartglass", "logo-xbox");
-        iconFromPackage.put("com.noinnion.android.greader.reader", "logo-rss");
-        iconFromPackage.put("com.pinterest", "logo-pinterest");
-        iconFromPackage.put("com.playstation.mobilemessenger", "logo-playstation");
-        iconFromPackage.put("com.playstation.remoteplay", "logo-playstation");
-        iconFromPackage.put("com.playstation.video", "logo-playstation");
-        iconFromPackage.put("com.reddit.frontpage", "logo-reddit");
-        iconFromPackage.put("com.runtastic.android", "ios-walk");
-        iconFromPackage.put("com.runtastic.android.pro2", "ios-walk");
-        iconFromPackage.put("com.scee.psxandroid", "logo-playstation");
-        iconFromPackage.put("com.sec.android.app.music", "ios-musical-notes");
-        iconFromPackage.put("com.skype.android.access", "logo-skype");
-        iconFromPackage.put("com.skype.raider", "logo-skype");
-        iconFromPackage.put("com.snapchat.android", "logo-snapchat");
-        iconFromPackage.put("com.sonyericsson.conversations", "ios-text");
-        iconFromPackage.put("com.spotify.music", "ios-musical-notes");
-        iconFromPackage.put("com.tinder", "md-flame");
-        iconFromPackage.put("com.tumblr", "logo-tumblr");
-        iconFromPackage.put("com.twitter.android", "logo-twitter");
-        iconFromPackage.put("com.valvesoftware.android.steam.community", "logo-steam");
-        iconFromPackage.put("com.vimeo.android.videoapp", "logo-vimeo");
-        iconFromPackage.put("com.whatsapp", "logo-whatsapp");
-        iconFromPackage.put("com.yahoo.mobile.client.android.atom", "logo-yahoo");
-        iconFromPackage.put("com.yahoo.mobile.client.android.finance", "logo-yahoo");
-        iconFromPackage.put("com.yahoo.mobile.client.android.im", "logo-yahoo");
-        iconFromPackage.put("com.yahoo.mobile.client.android.mail", "logo-yahoo");
-        iconFromPackage.put("com.yahoo.mobile.client.android.search", "logo-yahoo");
-        iconFromPackage.put("com.yahoo.mobile.client.android.sportacular", "logo-yahoo");
-        iconFromPackage.put("com.yahoo.mobile.client.android.weather", "logo-yahoo");
-        iconFromPackage.put("de.number26.android", "ios-card");
-        iconFromPackage.put("flipboard.app", "logo-rss");
-        iconFromPackage.put("im.vector.app", "ios-chatbubbles-outline");
-        iconFromPackage.put("net.etuldan.sparss.floss", "logo-rss");
-        iconFromPackage.put("net.frju.flym", "logo-rss");
-        iconFromPackage.put("net.slideshare.mobile", "logo-linkedin");
-        iconFromPackage.put("org.buffer.android", "logo-buffer");
-        iconFromPackage.put("org.kde.kdeconnect_tp", "md-phone-portrait");
-        iconFromPackage.put("org.telegram.messenger", "ios-paper-plane");
-        iconFromPackage.put("org.thoughtcrime.securesms", "logo-signal");
-        iconFromPackage.put("org.thunderdog.challegram", "ios-paper-plane");
-        iconFromPackage.put("org.wordpress.android", "logo-wordpress");
-        iconFromPackage.put("tv.twitch.android.app", "logo-twitch");
-        iconFromPackage.put("ws.xsoh.etar", "ios-calendar");
+        packageChangeReceiver = new PackageChangeReceiver();
+        IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addDataScheme("package");
+        registerReceiver(packageChangeReceiver, packageFilter);
+        registerReceiver(packageChangeReceiver, new IntentFilter(Intent.ACTION_LOCALE_CHANGED));
+        sPipeline.submit("prewarm", this::prewarm);
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
         unregisterReceiver(nlServiceReceiver);
-        iconFromPackage.clear();
+        unregisterReceiver(packageChangeReceiver);
+        mHandler.removeCallbacksAndMessages(null);
+        sPipeline.shutdown();
     }
 
+    /**
+     * Only captures the notification, it is parsed and sent by the pipeline so that bursts do not
+     * stall the listener.
+     */
     @Override
     public void onNotificationPosted(StatusBarNotification sbn) {
-        Notification notification = sbn.getNotification();
-        String packageName = sbn.getPackageName();
+        if (!isShown(sbn))
+            return;
+        final NotificationPipeline pipeline = sPipeline;
+        pipeline.post(sbn.getKey(), isDroppable(sbn.getNotification()), () -> {
+            long start = System.nanoTime();
+            NotificationParser parser = new NotificationParser(sbn.getNotification(), sbn.getKey());
+            NotificationEvent event = parse(sbn, parser);
+            long parsed = System.nanoTime();
+            pipeline.record(NotificationPipeline.Stage.PARSE, parsed - start);
+            NotificationBus.send(this, event);
+            parser.commit();
+            pipeline.record(NotificationPipeline.Stage.SEND, System.nanoTime() - parsed);
+        });
+    }
 
+    /**
+     * @return whether the notification is shown on the watch, only looks at its flags
+     */
+    private static boolean isShown(StatusBarNotification sbn) {
+        Notification notification = sbn.getNotification();
         String[] allowedOngoingApps = {"com.google.android.apps.maps", "org.thoughtcrime.securesms"};
-        if ((notification.priority < Notification.PRIORITY_DEFAULT) ||
+        return !((notification.priority < Notification.PRIORITY_DEFAULT) ||
                 ((notification.flags & Notification.FLAG_ONGOING_EVENT) != 0
-                        && !Arrays.asList(allowedOngoingApps).contains(packageName)) ||
+                        && !Arrays.asList(allowedOngoingApps).contains(sbn.getPackageName())) ||
                 (NotificationCompat.getLocalOnly(notification)) ||
-                (NotificationCompat.isGroupSummary(notification)))
-            return;
+                (NotificationCompat.isGroupSummary(notification)));
+    }
+
+    /**
+     * @return whether a post may be dropped when the pipeline is full, calls, alarms and high
+     * priority notifications are always delivered
+     */
+    private static boolean isDroppable(Notification notification) {
+        return notification.priority < Notification.PRIORITY_HIGH
+                && !Notification.CATEGORY_CALL.equals(notification.category)
+                && !Notification.CATEGORY_ALARM.equals(notification.category);
+    }
+
+    /**
+     * @return the fields of a shown notification for NotificationService
+     */
+    private NotificationEvent parse(StatusBarNotification sbn, NotificationParser notifParser) {
+        String packageName = sbn.getPackageName();
 
-        NotificationParser notifParser = new NotificationParser(notification);
         String summary = notifParser.summary;
         String body = notifParser.body;
         int id = sbn.getId();
-        String appIcon = iconFromPackage.get(packageName);
+        String appIcon = IconTable.get(this).lookup(packageName);
+
+        String appName = getAppLabel(packageName);
 
-        String appName = "";
+        if (summary == null) summary = "";
+        else summary = summary.trim();
+        // Messages are shaped one by one, so that a message spanning lines is kept whole.
+        if (notifParser.messages != null) body = sBodyShaper.shape(notifParser.messages);
+        else if (body == null) body = "";
+        else body = sBodyShaper.shape(body.trim());
+        if (packageName == null) packageName = "";
+        if (appIcon == null) appIcon = "";
+
+        return NotificationEvent.posted(packageName, id, appName, appIcon, summary, body, null);
+    }
+
+
+    private String getAppLabel(String packageName) {
+        String appName = mAppLabels.get(packageName);
+        if (appName != null)
+            return appName;
         try {
             final PackageManager pm = getApplicationContext().getPackageManager();
             ApplicationInfo ai = pm.getApplicationInfo(packageName, 0);
             appName = pm.getApplicationLabel(ai).toString();
+            mAppLabels.put(packageName, appName);
+            return appName;
         } catch (PackageManager.NameNotFoundException ignored) {
+            return "";
         }
+    }
 
-        if (summary == null) summary = "";
-        else summary = summary.trim();
-        if (body == null) body = "";
-        else body = body.trim();
-        if (packageName == null) packageName = "";
-        if (appIcon == null) appIcon = "";
+    /**
+     * Reads the icon table and looks up the labels of the apps that posted before, ahead of
+     * their next notification.
+     */
+    private void prewarm() {
+        IconTable.get(this);
+        List<String> seen = NotificationPreferences.seenPackageNames(this);
+        // Packages are appended to the seen list when they first post, older ones may be gone.
+        for (int i = Math.max(0, seen.size() - APP_LABEL_CACHE_SIZE); i < seen.size(); i++)
+            getAppLabel(seen.get(i));
+    }
 
-        Intent i = new Intent("org.asteroidos.sync.NOTIFICATION_LISTENER");
-        i.putExtra("event", "posted");
-        i.putExtra("packageName", packageName);
-        i.putExtra("id", id);
-        i.putExtra("appName", appName);
-        i.putExtra("appIcon", appIcon);
-        i.putExtra("summary", summary);
-        i.putExtra("body", body);
+    /**
+     * Sends all active notifications, the most recent first, in a few broadcasts instead of one
+     * per notification. They are parsed on the pipeline like single posts.
+     */
+    private void refresh() {
+        sPipeline.submit("refresh", this::sendActiveNotifications);
+    }
 
-        sendBroadcast(i);
+    private void sendActiveNotifications() {
+        StatusBarNotification[] notifs = getActiveNotifications();
+        if (notifs == null)
+            return;
+        Arrays.sort(notifs, (n1, n2) -> Long.compare(n2.getPostTime(), n1.getPostTime()));
+        ArrayList<NotificationEvent> batch = new ArrayList<>();
+        ArrayList<NotificationParser> parsers = new ArrayList<>();
+        for (StatusBarNotification notif : notifs) {
+            if (!isShown(notif))
+                continue;
+            NotificationParser parser = new NotificationParser(notif.getNotification(), notif.getKey());
+            batch.add(parse(notif, parser));
+            parsers.add(parser);
+            if (batch.size() == REFRESH_BATCH_SIZE) {
+                sendBatch(batch, parsers);
+                batch = new ArrayList<>();
+                parsers = new ArrayList<>();
+            }
+        }
+        if (!batch.isEmpty())
+            sendBatch(batch, parsers);
+    }
+
+    private void sendBatch(ArrayList<NotificationEvent> batch, List<NotificationParser> parsers) {
+        NotificationBus.send(this, NotificationEvent.batch(batch));
+        for (NotificationParser parser : parsers)
+            parser.commit();
     }
 
     @Override
     public void onNotificationRemoved(StatusBarNotification sbn) {
-        Intent i = new Intent("org.asteroidos.sync.NOTIFICATION_LISTENER");
-        i.putExtra("event", "removed");
-        i.putExtra("id", sbn.getId());
-        sendBroadcast(i);
+        // Queued behind a post of the same notification that may still be parsed.
+        sPipeline.submit(sbn.getKey(), () -> {
+            NotificationParser.forget(sbn.getKey());
+            NotificationBus.send(this, NotificationEvent.removed(sbn.getPackageName(), sbn.getId()));
+        });
     }
 
     @Override
     public void onListenerDisconnected() {
         listenerConnected = false;
         // Notification listener disconnected - requesting rebind
-        requestRebind(new ComponentName(this, NotificationListenerService.class));
+        rebind();
+    }
+
+    private void rebind() {
+        try {
+            requestRebind(new ComponentName(this, NLService.class));
+        } catch (SecurityException e) {
+            // The user revoked the notification access.
+            Log.w(TAG, "Could not request a rebind", e);
+        }
     }
 
     @Override
     public void onListenerConnected() {
         listenerConnected = true;
+        mHandler.post(this::onReady);
     }
 
-    @SuppressWarnings("StatementWithEmptyBody")
-    class NLServiceReceiver extends BroadcastReceiver {
+    /**
+     * @return how long the last refresh had to wait for the listener to connect in milliseconds,
+     * 0 if it was connected already, or -1 if no refresh waited yet
+     */
+    public static long getTimeToReady() {
+        return sTimeToReady;
+    }
+
+    /**
+     * Records the time of a stage that runs outside of the pipeline, if the listener is running.
+     */
+    public static void recordStage(NotificationPipeline.Stage stage, long nanos) {
+        NotificationPipeline pipeline = sPipeline;
+        if (pipeline != null)
+            pipeline.record(stage, nanos);
+    }
+
+    /**
+     * @return the stage timings of the notification pipeline and how bodies were parsed and shaped,
+     * or null if the listener is not running
+     */
+    public static String dumpPipeline() {
+        NotificationPipeline pipeline = sPipeline;
+        return pipeline == null ? null : pipeline.dump() + NotificationParser.dumpPaths()
+                + sBodyShaper.dump();
+    }
+
+    /**
+     * Refreshes once the listener is connected. Requests that arrive before are coalesced, a
+     * single refresh sends all active notifications anyway.
+     */
+    private void requestRefresh() {
+        if (listenerConnected) {
+            sTimeToReady = 0;
+            mHandler.postDelayed(this::refresh, REFRESH_DELAY_MS);
+            return;
+        }
+        if (mRefreshRequested == 0) {
+            mRefreshRequested = SystemClock.uptimeMillis();
+            mHandler.postDelayed(mReadyTimeout, LISTENER_TIMEOUT_MS);
+        }
+    }
+
+    private void onReady() {
+        if (mRefreshRequested == 0 || !listenerConnected)
+            return;
+        sTimeToReady = SystemClock.uptimeMillis() - mRefreshRequested;
+        Log.i(TAG, "Notification listener ready after " + sTimeToReady + "ms");
+        mRefreshRequested = 0;
+        mHandler.removeCallbacks(mReadyTimeout);
+        refresh();
+    }
+
+    /**
+     * Asks for a rebind, the refresh is still served once the listener connects.
+     */
+    private void onReadyTimeout() {
+        Log.w(TAG, "Notification listener not connected after " + LISTENER_TIMEOUT_MS + "ms, requesting a rebind");
+        rebind();
+    }
+
+    /**
+     * Drops a pending refresh, the watch that asked for it disconnected.
+     */
+    private void cancelRefresh() {
+        mRefreshRequested = 0;
+        mHandler.removeCallbacks(mReadyTimeout);
+    }
+
+    /**
+     * Drops the labels of updated and removed apps, and all labels when the locale changed.
+     */
+    class PackageChangeReceiver extends BroadcastReceiver {
         @Override
         public void onReceive(Context context, Intent intent) {
-            if (intent.getStringExtra("command").equals("refresh")) {
-                Handler handler = new Handler();
-                handler.postDelayed(() -> {
-                    while (!listenerConnected) {
-                        // Sleep the spin
-                        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
-                            Thread.onSpinWait();
-                        }else {
-                            // Will not delay here, as we can cause the entire UI to freeze
-                        }
-                    }
-                    StatusBarNotification[] notifs = getActiveNotifications();
-                    for (StatusBarNotification notif : notifs)
-                        onNotificationPosted(notif);
-                }, 500);
+            if (Intent.ACTION_LOCALE_CHANGED.equals(intent.getAction())) {
+                mAppLabels.clear();
+            } else if (intent.getData() != null) {
+                mAppLabels.remove(intent.getData().getSchemeSpecificPart());
             }
         }
     }
+
+    class NLServiceReceiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            String command = intent.getStringExtra("command");
+            if ("refresh".equals(command))
+                requestRefresh();
+            else if ("cancelRefresh".equals(command))
+                cancelRefresh();
+        }
+    }
 }
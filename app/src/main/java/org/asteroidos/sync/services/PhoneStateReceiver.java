@@ -31,6 +31,9 @@ import android.telephony.PhoneStateListener;
 import android.telephony.TelephonyManager;
 
 import org.asteroidos.sync.R;
+import org.asteroidos.sync.dataobjects.NotificationEvent;
+import org.asteroidos.sync.utils.NotificationBus;
+
 import java.util.Objects;
 
 import static android.telephony.TelephonyManager.ACTION_PHONE_STATE_CHANGED;
@@ -99,25 +102,15 @@ public class PhoneStateReceiver extends BroadcastReceiver {
                 if (contact == null) {
                     contact = number;
                 }
-                Intent i = new  Intent("org.asteroidos.sync.NOTIFICATION_LISTENER");
-                i.putExtra("event", "posted");
-                i.putExtra("packageName", "org.asteroidos.generic.dialer");
-                i.putExtra("id", 56345);
-                i.putExtra("appName", context.getResources().getString(R.string.dialer));
-                i.putExtra("appIcon", "ios-call");
-                i.putExtra("summary", contact);
-                i.putExtra("body", number);
-                i.putExtra("vibration", "ringtone");
-
-                context.sendBroadcast(i);
+                NotificationBus.send(context, NotificationEvent.posted("org.asteroidos.generic.dialer", 56345,
+                        context.getResources().getString(R.string.dialer), "ios-call",
+                        contact, number, "ringtone"));
             }
         }
 
         private void stopRinging(){
-            Intent i = new Intent("org.asteroidos.sync.NOTIFICATION_LISTENER");
-            i.putExtra("event", "removed");
-            i.putExtra("id", 56345);
-            context.sendBroadcast(i);
+            NotificationBus.send(context, NotificationEvent.removed("org.asteroidos.generic.dialer", 56345));
         }
+
     }
 }
@@ -44,6 +44,9 @@ import org.asteroidos.sync.MainActivity;
 import org.asteroidos.sync.R;
 import org.asteroidos.sync.asteroid.AsteroidBleManager;
 import org.asteroidos.sync.asteroid.IAsteroidDevice;
+import org.asteroidos.sync.asteroid.Outbox;
+import org.asteroidos.sync.asteroid.PendingWrite;
+import org.asteroidos.sync.asteroid.TransportMetrics;
 import org.asteroidos.sync.connectivity.IConnectivityService;
 import org.asteroidos.sync.connectivity.IService;
 import org.asteroidos.sync.connectivity.IServiceCallback;
@@ -53,7 +56,9 @@ import org.asteroidos.sync.connectivity.ScreenshotService;
 import org.asteroidos.sync.connectivity.SilentModeService;
 import org.asteroidos.sync.connectivity.TimeService;
 import org.asteroidos.sync.connectivity.WeatherService;
+import org.asteroidos.sync.utils.PooledBuffer;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -73,8 +78,11 @@ public class SynchronizationService extends Service implements IAsteroidDevice,
     public static final int MSG_SET_DEVICE = 7;
     public static final int MSG_UPDATE = 8;
     public static final int MSG_UNSET_DEVICE = 9;
+    public static final int MSG_REQUEST_METRICS = 10;
+    public static final int MSG_SET_METRICS = 11;
 
     private static final String NOTIFICATION_CHANNEL_ID = "synchronizationservice_channel_id_01";
+    private static final String OUTBOX_FILE = "outbox.journal";
     final Messenger mMessenger = new Messenger(new SynchronizationHandler(this));
     private final int NOTIFICATION = 2725;
     public BluetoothDevice mDevice;
@@ -86,6 +94,7 @@ public class SynchronizationService extends Service implements IAsteroidDevice,
     private Messenger replyTo;
     private SharedPreferences mPrefs;
     private AsteroidBleManager mBleMngr;
+    private Outbox mOutbox;
 
     final void handleConnect() {
         if (mBleMngr == null) {
@@ -155,6 +164,27 @@ public class SynchronizationService extends Service implements IAsteroidDevice,
         }
     }
 
+    final void handleRequestMetrics() {
+        try {
+            String metrics = mBleMngr.dumpMetrics();
+            for (IConnectivityService service : bleServices.values())
+                if (service instanceof NotificationService)
+                    metrics += "\nNotification re-posts: " + ((NotificationService) service).getDuplicateCount()
+                            + " unchanged and dropped, " + ((NotificationService) service).getUniqueCount() + " sent\n";
+            long bulkThroughput = mBleMngr.getBulkThroughput();
+            if (bulkThroughput > 0)
+                metrics += "\nLast bulk transfer at " + bulkThroughput + " bytes/s\n";
+            long timeToReady = NLService.getTimeToReady();
+            if (timeToReady >= 0)
+                metrics += "\nNotification listener ready after " + timeToReady + " ms\n";
+            String pipeline = NLService.dumpPipeline();
+            if (pipeline != null)
+                metrics += "\n" + pipeline;
+            replyTo.send(Message.obtain(null, MSG_SET_METRICS, metrics));
+        } catch (RemoteException | NullPointerException ignored) {
+        }
+    }
+
     final public void unsyncServices() {
         bleServices.values().forEach(IService::unsync);
         nonBleServices.forEach(IService::unsync);
@@ -172,8 +202,77 @@ public class SynchronizationService extends Service implements IAsteroidDevice,
 
     @Override
     public final void send(UUID characteristic, byte[] data, IConnectivityService service) {
-        mBleMngr.send(characteristic, data);
-        Log.d(TAG, characteristic.toString() + " " + Arrays.toString(data));
+        send(characteristic, data, service, service.getPriority());
+    }
+
+    @Override
+    public final void send(UUID characteristic, byte[] data, IConnectivityService service, IConnectivityService.Priority priority) {
+        Log.d(TAG, characteristic.toString() + " " + priority + " " + Arrays.toString(data));
+        if (!mBleMngr.isReady()) {
+            mOutbox.add(characteristic, service.getServiceUUID(), priority, data, 0, data.length,
+                    getDedupeKey(characteristic, service, null), PendingWrite.DEFAULT_TTL_MS);
+            return;
+        }
+        mBleMngr.send(characteristic, data, service, priority);
+    }
+
+    @Override
+    public final void send(UUID characteristic, PooledBuffer data, IConnectivityService service, IConnectivityService.Priority priority) {
+        send(characteristic, data, service, priority, null, PendingWrite.DEFAULT_TTL_MS);
+    }
+
+    @Override
+    public final void send(UUID characteristic, PooledBuffer data, IConnectivityService service, IConnectivityService.Priority priority,
+                           String dedupeKey, long ttl) {
+        // Only log the size, a dump of the buffer would be the largest allocation on this path.
+        Log.d(TAG, characteristic.toString() + " " + priority + " " + data.size() + " bytes");
+        if (!mBleMngr.isReady()) {
+            mOutbox.add(characteristic, service.getServiceUUID(), priority, data.array(), 0, data.size(),
+                    getDedupeKey(characteristic, service, dedupeKey), ttl);
+            data.recycle();
+            return;
+        }
+        mBleMngr.send(characteristic, data, service, priority, dedupeKey, ttl);
+    }
+
+    /**
+     * Keeps a write that could not be sent because the watch disconnected.
+     */
+    public final void stash(PendingWrite write) {
+        mOutbox.add(write.characteristic, write.service.getServiceUUID(), write.priority, write.data, 0, write.length,
+                getDedupeKey(write.characteristic, write.service, write.dedupeKey), write.ttl);
+    }
+
+    // Only the latest value of a LAST_VALUE_WINS characteristic is worth keeping.
+    private static String getDedupeKey(UUID characteristic, IConnectivityService service, String dedupeKey) {
+        if (dedupeKey == null && service.getCharacteristicWriteModes().get(characteristic) == IConnectivityService.WriteMode.LAST_VALUE_WINS)
+            return characteristic.toString();
+        return dedupeKey;
+    }
+
+    private void replayOutbox() {
+        List<Outbox.Entry> entries = mOutbox.takeAll();
+        if (entries.isEmpty())
+            return;
+        Log.d(TAG, "Replaying " + entries.size() + " writes from the outbox");
+        final long now = System.currentTimeMillis();
+        for (Outbox.Entry entry : entries) {
+            IConnectivityService service = getServiceByUUID(entry.service);
+            // A write that is stashed again during the replay keeps its key and expiry.
+            if (service != null)
+                mBleMngr.send(entry.characteristic, entry.data, service, entry.priority,
+                        entry.dedupeKey, Math.max(1, entry.expiresAt - now));
+        }
+    }
+
+    @Override
+    public final TransportMetrics getTransportMetrics() {
+        return mBleMngr.getMetrics();
+    }
+
+    @Override
+    public final void setBulkTransfer(IConnectivityService service, boolean bulk) {
+        mBleMngr.setBulkTransfer(service, bulk);
     }
 
     @Override
@@ -198,6 +297,11 @@ public class SynchronizationService extends Service implements IAsteroidDevice,
         mBleMngr.recvCallbacks.remove(characteristicUUID);
     }
 
+    @Override
+    public final void registerReadCallback(UUID characteristicUUID, IServiceCallback callback) {
+        mBleMngr.readCallbacks.putIfAbsent(characteristicUUID, callback);
+    }
+
     @Override
     public final IConnectivityService getServiceByUUID(UUID uuid) {
         return bleServices.get(uuid);
@@ -227,6 +331,8 @@ public class SynchronizationService extends Service implements IAsteroidDevice,
     public final void onDeviceReady(@NonNull BluetoothDevice device) {
         mState = ConnectionState.STATUS_CONNECTED;
         updateNotification();
+        // Before the services sync, so that their fresh values are sent after the stale ones.
+        replayOutbox();
         syncServices();
         AsteroidBleManager.BatteryLevelEvent bevent = new AsteroidBleManager.BatteryLevelEvent();
         bevent.battery = batteryPercentage;
@@ -266,6 +372,8 @@ public class SynchronizationService extends Service implements IAsteroidDevice,
         String defaultDevMacAddr = mPrefs.getString(MainActivity.PREFS_DEFAULT_MAC_ADDR, "");
         String defaultLocalName = mPrefs.getString(MainActivity.PREFS_DEFAULT_LOC_NAME, "");
 
+        mOutbox = new Outbox(new File(getFilesDir(), OUTBOX_FILE));
+
         if (mBleMngr == null) {
             mBleMngr = new AsteroidBleManager(getApplicationContext(), SynchronizationService.this);
             mBleMngr.setConnectionObserver(this);
@@ -333,6 +441,7 @@ public class SynchronizationService extends Service implements IAsteroidDevice,
     @Override
     public void onDestroy() {
         mBleMngr.disconnect();
+        mOutbox.close();
         mNM.cancel(NOTIFICATION);
     }
 
@@ -353,6 +462,7 @@ public class SynchronizationService extends Service implements IAsteroidDevice,
             mBleMngr.disconnect().enqueue();
         }
         mDevice = null;
+        mOutbox.clear();
         editor.putString(MainActivity.PREFS_DEFAULT_LOC_NAME, "");
         editor.putString(MainActivity.PREFS_DEFAULT_MAC_ADDR, "");
         editor.putString(MainActivity.PREFS_NAME, "");
@@ -403,6 +513,9 @@ public class SynchronizationService extends Service implements IAsteroidDevice,
                 case MSG_UPDATE:
                     mService.handleUpdateConnectionStatus();
                     break;
+                case MSG_REQUEST_METRICS:
+                    mService.handleRequestMetrics();
+                    break;
                 default:
                     super.handleMessage(msg);
             }
@@ -0,0 +1,178 @@
+/*
+ * AsteroidOSSync
+ * Copyright (c) 2023 AsteroidOS
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.asteroidos.sync.utils;
+
+import android.icu.text.BreakIterator;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fits the body of a notification into a byte budget before it is encoded. The watch cannot
+ * show pages of an email anyway, and every 512 bytes are another chunk on the link.
+ *
+ * Runs of whitespace and blank lines are collapsed first. A body that is still over the budget
+ * is cut at a grapheme boundary and ends with an ellipsis, a conversation keeps its newest
+ * messages whole instead.
+ */
+public final class BodyShaper {
+    private static final String ELLIPSIS = "…";
+    private static final int ELLIPSIS_BYTES = 3;
+
+    private final int mMaxBytes;
+    private final AtomicLong mShaped = new AtomicLong();
+    private final AtomicLong mBudgetHits = new AtomicLong();
+    private final AtomicLong mBytesIn = new AtomicLong();
+    private final AtomicLong mBytesOut = new AtomicLong();
+
+    /**
+     * @param maxBytes the budget in UTF-8 bytes
+     */
+    public BodyShaper(int maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * @return the body, collapsed and cut to the budget
+     */
+    public String shape(String body) {
+        int maxBytes = mMaxBytes;
+        String shaped = collapseWhitespace(body);
+        int length = utf8Length(shaped, 0, shaped.length());
+
+        mShaped.incrementAndGet();
+        mBytesIn.addAndGet(utf8Length(body, 0, body.length()));
+        if (length > maxBytes) {
+            mBudgetHits.incrementAndGet();
+            shaped = truncate(shaped, maxBytes);
+            length = utf8Length(shaped, 0, shaped.length());
+        }
+        mBytesOut.addAndGet(length);
+        return shaped;
+    }
+
+    /**
+     * @param messages the messages of a conversation, the newest first, each may span lines
+     * @return the collapsed messages one per line, as many of the newest as fit the budget whole
+     */
+    public String shape(List<String> messages) {
+        int maxBytes = mMaxBytes;
+        StringBuilder sb = new StringBuilder();
+        int length = 0;
+        boolean overBudget = false;
+
+        mShaped.incrementAndGet();
+        for (String message : messages) {
+            mBytesIn.addAndGet(utf8Length(message, 0, message.length()));
+            if (overBudget)
+                continue;
+            String shaped = collapseWhitespace(message);
+            if (shaped.isEmpty())
+                continue;
+            int separator = sb.length() == 0 ? 0 : 1;
+            int messageBytes = utf8Length(shaped, 0, shaped.length());
+            if (length + separator + messageBytes > maxBytes) {
+                overBudget = true;
+                // Even the newest message alone is too long.
+                if (sb.length() == 0)
+                    sb.append(truncate(shaped, maxBytes));
+                continue;
+            }
+            if (separator != 0)
+                sb.append('\n');
+            sb.append(shaped);
+            length += separator + messageBytes;
+        }
+        if (overBudget)
+            mBudgetHits.incrementAndGet();
+        String shaped = sb.toString();
+        mBytesOut.addAndGet(utf8Length(shaped, 0, shaped.length()));
+        return shaped;
+    }
+
+    public String dump() {
+        return "  shaped " + mShaped.get() + " bodies, " + mBudgetHits.get() + " over budget, "
+                + mBytesIn.get() + " to " + mBytesOut.get() + " bytes\n";
+    }
+
+    /**
+     * Collapses runs of spaces and tabs into a single space, drops trailing spaces of lines and
+     * keeps at most one blank line in a row.
+     */
+    static String collapseWhitespace(String text) {
+        StringBuilder sb = new StringBuilder(text.length());
+        int newlines = 0;
+        boolean space = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\n') {
+                space = false;
+                newlines++;
+            } else if (c == ' ' || c == '\t' || c == '\r' || c == '\f' || c == '\u000B' || c == '\u00A0') {
+                space = true;
+            } else {
+                if (newlines > 0 && sb.length() > 0)
+                    sb.append(newlines > 1 ? "\n\n" : "\n");
+                else if (space && sb.length() > 0)
+                    sb.append(' ');
+                newlines = 0;
+                space = false;
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Cuts the text at the last grapheme boundary that leaves room for an ellipsis. The ICU
+     * iterator keeps emoji sequences such as skin tones and flags together.
+     */
+    static String truncate(String text, int maxBytes) {
+        if (maxBytes < ELLIPSIS_BYTES)
+            return "";
+        BreakIterator graphemes = BreakIterator.getCharacterInstance();
+        graphemes.setText(text);
+        int end = 0;
+        int bytes = ELLIPSIS_BYTES;
+        for (int next = graphemes.next(); next != BreakIterator.DONE; next = graphemes.next()) {
+            bytes += utf8Length(text, end, next);
+            if (bytes > maxBytes)
+                break;
+            end = next;
+        }
+        return text.substring(0, end).trim() + ELLIPSIS;
+    }
+
+    static int utf8Length(String text, int start, int end) {
+        int bytes = 0;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80)
+                bytes += 1;
+            else if (c < 0x800)
+                bytes += 2;
+            else if (Character.isSurrogate(c))
+                // Two surrogates make up a four byte code point.
+                bytes += 2;
+            else
+                bytes += 3;
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * AsteroidOSSync
+ * Copyright (c) 2023 AsteroidOS
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.asteroidos.sync.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers a hash of the content last seen under a key, so that content which did not change
+ * can be recognized without keeping the content itself. The least recently used keys are
+ * dropped once the cache is full.
+ */
+public final class ContentHashCache {
+    private final LinkedHashMap<String, Long> mHashes;
+    private long mHits = 0;
+    private long mMisses = 0;
+
+    public ContentHashCache(final int maxEntries) {
+        mHashes = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @return true if the key was last seen with the same hash, otherwise the hash is remembered
+     */
+    public synchronized boolean isDuplicate(String key, long hash) {
+        Long previous = mHashes.put(key, hash);
+        if (previous != null && previous == hash) {
+            mHits++;
+            return true;
+        }
+        mMisses++;
+        return false;
+    }
+
+    public synchronized void remove(String key) {
+        mHashes.remove(key);
+    }
+
+    public synchronized void clear() {
+        mHashes.clear();
+    }
+
+    public synchronized long getHits() {
+        return mHits;
+    }
+
+    public synchronized long getMisses() {
+        return mMisses;
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * AsteroidOSSync
+ * Copyright (c) 2023 AsteroidOS
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.asteroidos.sync.utils;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Resolves the icon the watch shows for the notifications of a package. The table is read from
+ * the notification_icons.txt asset. A file of the same name and format in the external files
+ * directory of the app takes precedence, so users can add and change entries without a new
+ * build. Both are read once per process.
+ *
+ * Package names are kept in an immutable trie, a lookup walks the package name once and does
+ * not lock. An exact entry matches first, otherwise the longest family entry such as
+ * "com.linkedin.*" does.
+ */
+public final class IconTable {
+    public static final String TAG = IconTable.class.toString();
+    private static final String ASSET = "notification_icons.txt";
+    private static final String FAMILY_SUFFIX = "*";
+
+    private static volatile IconTable sInstance;
+
+    private static final class Node {
+        // Sorted, the child for keys[i] is children[i].
+        final char[] keys;
+        final Node[] children;
+        // The icon of the package that ends here.
+        final String icon;
+        // The icon of the packages that continue from here.
+        final String familyIcon;
+
+        Node(char[] keys, Node[] children, String icon, String familyIcon) {
+            this.keys = keys;
+            this.children = children;
+            this.icon = icon;
+            this.familyIcon = familyIcon;
+        }
+
+        Node child(char c) {
+            int i = Arrays.binarySearch(keys, c);
+            return i < 0 ? null : children[i];
+        }
+    }
+
+    private static final class Builder {
+        final TreeMap<Character, Builder> children = new TreeMap<>();
+        String icon;
+        String familyIcon;
+
+        void put(String pattern, String icon) {
+            boolean family = pattern.endsWith(FAMILY_SUFFIX);
+            if (family)
+                pattern = pattern.substring(0, pattern.length() - FAMILY_SUFFIX.length());
+            Builder builder = this;
+            for (int i = 0; i < pattern.length(); i++) {
+                Builder child = builder.children.get(pattern.charAt(i));
+                if (child == null) {
+                    child = new Builder();
+                    builder.children.put(pattern.charAt(i), child);
+                }
+                builder = child;
+            }
+            if (family)
+                builder.familyIcon = icon;
+            else
+                builder.icon = icon;
+        }
+
+        Node build() {
+            char[] keys = new char[children.size()];
+            Node[] nodes = new Node[children.size()];
+            int i = 0;
+            for (Map.Entry<Character, Builder> child : children.entrySet()) {
+                keys[i] = child.getKey();
+                nodes[i] = child.getValue().build();
+                i++;
+            }
+            return new Node(keys, nodes, icon, familyIcon);
+        }
+    }
+
+    private final Node mRoot;
+
+    private IconTable(Node root) {
+        mRoot = root;
+    }
+
+    /**
+     * @return the table of the asset and the user entries, read on first use
+     */
+    public static IconTable get(Context context) {
+        IconTable table = sInstance;
+        if (table == null) {
+            synchronized (IconTable.class) {
+                table = sInstance;
+                if (table == null) {
+                    table = load(context.getApplicationContext());
+                    sInstance = table;
+                }
+            }
+        }
+        return table;
+    }
+
+    /**
+     * @return the icon for the package, or null if there is none
+     */
+    public String lookup(String packageName) {
+        Node node = mRoot;
+        String familyIcon = null;
+        for (int i = 0; i < packageName.length(); i++) {
+            if (node.familyIcon != null)
+                familyIcon = node.familyIcon;
+            node = node.child(packageName.charAt(i));
+            if (node == null)
+                return familyIcon;
+        }
+        return node.icon != null ? node.icon : familyIcon;
+    }
+
+    private static IconTable load(Context context) {
+        Builder root = new Builder();
+        try {
+            read(context.getAssets().open(ASSET), root);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read " + ASSET, e);
+        }
+        File dir = context.getExternalFilesDir(null);
+        File user = dir == null ? null : new File(dir, ASSET);
+        if (user != null && user.exists()) {
+            try {
+                read(new FileInputStream(user), root);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not read " + user, e);
+            }
+        }
+        return new IconTable(root.build());
+    }
+
+    /**
+     * Puts the entries of the stream into the builder, later entries replace earlier ones.
+     */
+    private static void read(InputStream stream, Builder root) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                int separator = line.indexOf('=');
+                if (line.isEmpty() || line.startsWith("#") || separator < 0)
+                    continue;
+                root.put(line.substring(0, separator).trim(), line.substring(separator + 1).trim());
+            }
+        }
+    }
+}
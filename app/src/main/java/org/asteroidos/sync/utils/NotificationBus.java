@@ -0,0 +1,101 @@
+/*
+ * AsteroidOSSync
+ * Copyright (c) 2023 AsteroidOS
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.asteroidos.sync.utils;
+
+import android.content.Context;
+import android.os.Handler;
+
+import org.asteroidos.sync.dataobjects.NotificationEvent;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Hands notification events from NLService and PhoneStateReceiver to the NotificationService
+ * within the process, without the round trip of a broadcast through the system server.
+ *
+ * Any thread may publish, the events are delivered in order on the handler of the consumer.
+ * Producers fall back to a broadcast while no consumer is registered.
+ */
+public final class NotificationBus {
+    public interface Consumer {
+        void onNotificationEvent(NotificationEvent event);
+    }
+
+    private static final class Registration {
+        final Consumer consumer;
+        final Handler handler;
+
+        Registration(Consumer consumer, Handler handler) {
+            this.consumer = consumer;
+            this.handler = handler;
+        }
+    }
+
+    private static final ConcurrentLinkedQueue<NotificationEvent> sEvents = new ConcurrentLinkedQueue<>();
+    private static final AtomicBoolean sDrainScheduled = new AtomicBoolean(false);
+    private static final Runnable sDrain = NotificationBus::drain;
+    private static volatile Registration sRegistration;
+
+    private NotificationBus() {
+    }
+
+    public static void register(Consumer consumer, Handler handler) {
+        sRegistration = new Registration(consumer, handler);
+    }
+
+    public static void unregister(Consumer consumer) {
+        Registration registration = sRegistration;
+        if (registration != null && registration.consumer == consumer)
+            sRegistration = null;
+    }
+
+    /**
+     * @return false if no consumer is registered, the producer has to broadcast the event then
+     */
+    public static boolean publish(NotificationEvent event) {
+        Registration registration = sRegistration;
+        if (registration == null)
+            return false;
+        sEvents.offer(event);
+        if (sDrainScheduled.compareAndSet(false, true))
+            registration.handler.post(sDrain);
+        return true;
+    }
+
+    /**
+     * Publishes the event, or broadcasts it while no consumer is registered.
+     */
+    public static void send(Context context, NotificationEvent event) {
+        if (!publish(event))
+            context.sendBroadcast(event.toIntent());
+    }
+
+    private static void drain() {
+        // Events published from here on schedule another drain.
+        sDrainScheduled.set(false);
+        NotificationEvent event;
+        while ((event = sEvents.poll()) != null) {
+            Registration registration = sRegistration;
+            // Without a consumer the broadcast would not have been received either.
+            if (registration != null)
+                registration.consumer.onNotificationEvent(event);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * AsteroidOSSync
+ * Copyright (c) 2023 AsteroidOS
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.asteroidos.sync.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses notification messages with DEFLATE and a preset dictionary.
+ *
+ * Notifications are short and most of their bytes are tags, package names and icon names that
+ * repeat in every message, which plain DEFLATE cannot take advantage of in a single message. The
+ * preset dictionary holds these strings, so even a short notification is mostly references into
+ * it. Watches that announce {@link #CAPABILITY_DEFLATE} keep the same dictionary, a compressed
+ * frame is {@link #FRAME_DEFLATE}, the dictionary version and a raw DEFLATE stream without zlib
+ * header, so the watch has to set the dictionary before it inflates. XML frames start with '<',
+ * so the watch can tell both apart by the first byte. The inflated frame is again XML or
+ * {@link org.asteroidos.sync.dataobjects.Notification#FRAME_TLV}.
+ */
+public final class NotificationDeflater {
+    // Bit in the notification capabilities the watch announces.
+    public static final int CAPABILITY_DEFLATE = 1;
+    public static final byte FRAME_DEFLATE = 0x01;
+    public static final byte DICTIONARY_VERSION = 1;
+    // Below this the frame header and the end of the stream eat up most of the gain.
+    private static final int MIN_LENGTH = 48;
+
+    // The watch has a copy of this dictionary, it must never change. Add a new version instead.
+    // DEFLATE reaches the end of the dictionary with the shortest distances, so the strings that
+    // occur in almost every message come last.
+    static final byte[] DICTIONARY_V1 = (
+            // Chat notifications, see NotificationParser.
+            "Missed call Incoming call new messages Me: You: \n"
+            // Packages and their icons, see assets/notification_icons.txt and IconTable.
+            + "<pn>org.thoughtcrime.securesms</pn><pn>org.telegram.messenger</pn>"
+            + "<pn>com.google.android.apps.messaging</pn><pn>com.google.android.gm</pn>"
+            + "<pn>com.google.android.calendar</pn><pn>com.google.android.dialer</pn>"
+            + "<pn>com.google.android.youtube</pn><pn>com.facebook.orca</pn>"
+            + "<pn>com.facebook.katana</pn><pn>com.instagram.android</pn>"
+            + "<pn>com.twitter.android</pn><pn>com.snapchat.android</pn>"
+            + "<pn>com.spotify.music</pn><pn>com.android.mms</pn><pn>com.whatsapp</pn>"
+            + "<ai>ios-musical-notes</ai><ai>ios-paper-plane</ai><ai>ios-calendar</ai>"
+            + "<ai>ios-mail</ai><ai>ios-call</ai><ai>logo-signal</ai><ai>logo-whatsapp</ai>"
+            + "<ai>logo-facebook</ai><ai>logo-instagram</ai><ai>logo-twitter</ai>"
+            + "<ai>logo-youtube</ai><ai>ios-chatbubbles</ai><ai>ios-text</ai>"
+            // The frame of every message.
+            + "<removed><id></id></removed>"
+            + "<vb>none</vb><vb>strong</vb><vb>ringtone</vb>"
+            + "</bo></insert><insert><id></id><pn></pn><vb>normal</vb><an></an><ai></ai><su></su><bo>"
+    ).getBytes(StandardCharsets.UTF_8);
+
+    private final Deflater mDeflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+    private final byte[] mChunk = new byte[512];
+
+    /**
+     * Compresses the message if that makes it smaller.
+     *
+     * @return a buffer with the compressed frame, or null if the message is better sent as it is
+     */
+    public PooledBuffer deflate(PooledBuffer message) {
+        if (message.size() < MIN_LENGTH)
+            return null;
+        PooledBuffer frame = PooledBuffer.obtain();
+        frame.write(FRAME_DEFLATE);
+        frame.write(DICTIONARY_VERSION);
+        mDeflater.reset();
+        mDeflater.setDictionary(DICTIONARY_V1);
+        mDeflater.setInput(message.array(), 0, message.size());
+        mDeflater.finish();
+        while (!mDeflater.finished()) {
+            int length = mDeflater.deflate(mChunk);
+            frame.write(mChunk, 0, length);
+            if (frame.size() >= message.size())
+                break;
+        }
+        if (frame.size() >= message.size()) {
+            frame.recycle();
+            return null;
+        }
+        return frame;
+    }
+}
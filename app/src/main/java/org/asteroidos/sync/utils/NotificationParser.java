@@ -30,44 +30,176 @@ import android.text.style.StyleSpan;
 import android.widget.RemoteViews;
 
 import java.lang.reflect.Field;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 // Originally from https://github.com/matejdro/PebbleNotificationCenter-Android written by Matej Drobnič under the terms of the GPLv3
 
 public class NotificationParser {
+    public enum ParsePath {
+        MESSAGING_STYLE,
+        INBOX,
+        EXTRAS,
+        // Legacy notifications without extras, their text is read from the views by reflection.
+        REMOTE_VIEWS,
+        NONE
+    }
+
+    // ReflectionAction types of setText and setCharSequence calls.
+    private static final int ACTION_TYPE_STRING = 9;
+    private static final int ACTION_TYPE_CHAR_SEQUENCE = 10;
+
+    // Messages of a conversation that are sent to the watch, the newest ones.
+    private static final int MAX_MESSAGES = 16;
+    // Conversations whose messages are remembered between posts.
+    private static final int MAX_CONVERSATIONS = 32;
+
+    private static final AtomicLongArray sPathCounts = new AtomicLongArray(ParsePath.values().length);
+    // Resolved once for the API level the app runs on, null until first needed.
+    private static volatile RemoteViewsFields sRemoteViewsFields;
+    private static final Map<String, Conversation> sConversations = Collections.synchronizedMap(
+            new LinkedHashMap<String, Conversation>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Conversation> eldest) {
+                    return size() > MAX_CONVERSATIONS;
+                }
+            });
+
+    /**
+     * The messages of a conversation that were sent already. A post only renders the messages
+     * that were not sent with an earlier post.
+     */
+    private static final class Conversation {
+        // The timestamp of the newest sent message and the hashes of the sent messages with that
+        // timestamp, messages that arrive together may share it.
+        long newest = Long.MIN_VALUE;
+        final HashSet<Integer> newestHashes = new HashSet<>();
+        // Newest first, at most MAX_MESSAGES.
+        final ArrayDeque<String> lines = new ArrayDeque<>();
+
+        boolean isSent(long timestamp, int hash) {
+            return timestamp < newest || (timestamp == newest && newestHashes.contains(hash));
+        }
+    }
+
+    private static final class RenderedMessage {
+        final long timestamp;
+        final String line;
+
+        RenderedMessage(long timestamp, String line) {
+            this.timestamp = timestamp;
+            this.line = line;
+        }
+    }
+
     public String summary;
     public String body;
+    // The rendered messages of a conversation, the newest first, null for other notifications.
+    public List<String> messages;
+    public ParsePath path = ParsePath.NONE;
+    // The messages this post adds to its conversation, they count as sent once committed.
+    private Conversation mConversation;
+    private boolean mReplacesHistory;
+    private List<RenderedMessage> mAdded;
 
     public NotificationParser(Notification notification)
+    {
+        this(notification, null);
+    }
+
+    /**
+     * @param key identifies the notification across posts, conversations with a key only render
+     *            their new messages
+     */
+    public NotificationParser(Notification notification, String key)
     {
         this.summary = null;
         this.body = "";
 
-        if (tryParseNatively(notification))
+        if (!tryParseNatively(notification, key))
+            getExtraBigData(notification);
+        sPathCounts.incrementAndGet(path.ordinal());
+    }
+
+    /**
+     * @return how many notifications were parsed along each path
+     */
+    public static String dumpPaths() {
+        StringBuilder sb = new StringBuilder("  parsed");
+        for (ParsePath path : ParsePath.values())
+            sb.append(' ').append(path.name().toLowerCase()).append(':').append(sPathCounts.get(path.ordinal()));
+        return sb.append('\n').toString();
+    }
+
+    /**
+     * Marks the messages of a conversation that this post rendered as sent, later posts leave
+     * them out. Call this once the post was handed on, a post that is not sent keeps them new.
+     */
+    public void commit() {
+        Conversation conversation = mConversation;
+        if (conversation == null)
             return;
+        mConversation = null;
+        synchronized (conversation) {
+            if (mReplacesHistory) {
+                conversation.newest = Long.MIN_VALUE;
+                conversation.newestHashes.clear();
+                conversation.lines.clear();
+            }
+            // Another post of the conversation may have been sent meanwhile.
+            for (RenderedMessage message : mAdded) {
+                int hash = message.line.hashCode();
+                if (conversation.isSent(message.timestamp, hash))
+                    continue;
+                if (message.timestamp > conversation.newest) {
+                    conversation.newest = message.timestamp;
+                    conversation.newestHashes.clear();
+                }
+                conversation.newestHashes.add(hash);
+                conversation.lines.addFirst(message.line);
+            }
+            while (conversation.lines.size() > MAX_MESSAGES)
+                conversation.lines.removeLast();
+        }
+    }
 
-        getExtraBigData(notification);
+    /**
+     * Forgets the messages of a conversation, call this when its notification is removed.
+     */
+    public static void forget(String key) {
+        sConversations.remove(key);
     }
 
-    private boolean tryParseNatively(Notification notification)
+    private boolean tryParseNatively(Notification notification, String key)
     {
         Bundle extras = notification.extras;
         if (extras == null)
             return false;
 
-        if (parseMessageStyleNotification(notification, extras))
+        if (parseMessageStyleNotification(notification, extras, key)) {
+            path = ParsePath.MESSAGING_STYLE;
             return true;
+        }
 
         CharSequence[] textLinesSequence = extras.getCharSequenceArray(Notification.EXTRA_TEXT_LINES);
         if (textLinesSequence != null && textLinesSequence.length > 0)
         {
-            if (parseInboxNotification(extras))
+            if (parseInboxNotification(extras)) {
+                path = ParsePath.INBOX;
                 return true;
+            }
         }
 
         if (extras.get(Notification.EXTRA_TEXT) == null && extras.get(Notification.EXTRA_TEXT_LINES) == null && extras.get(Notification.EXTRA_BIG_TEXT) == null)
             return false;
+        path = ParsePath.EXTRAS;
 
         CharSequence bigTitle = extras.getCharSequence(Notification.EXTRA_TITLE_BIG);
         CharSequence title = extras.getCharSequence(Notification.EXTRA_TITLE);
@@ -100,7 +232,7 @@ public class NotificationParser {
         return true;
     }
 
-    private boolean parseMessageStyleNotification(Notification notification, Bundle extras)
+    private boolean parseMessageStyleNotification(Notification notification, Bundle extras, String key)
     {
         NotificationCompat.MessagingStyle messagingStyle = NotificationCompat.MessagingStyle.extractMessagingStyleFromNotification(notification);
         if (messagingStyle == null)
@@ -114,31 +246,65 @@ public class NotificationParser {
         if (summary == null)
             summary = "";
 
-        List<NotificationCompat.MessagingStyle.Message> messagesDescending = new ArrayList<>(messagingStyle.getMessages());
-        messagesDescending.sort((m1, m2) -> (int) (m2.getTimestamp() - m1.getTimestamp()));
-
-        StringBuilder sb = new StringBuilder();
-        body = "";
-
-        for (NotificationCompat.MessagingStyle.Message message : messagesDescending)
-        {
-            String sender;
-            if (message.getPerson() == null)
-                sender = formatCharSequence(messagingStyle.getUser().getName());
-            else
-                sender = formatCharSequence(message.getPerson().getName());
-
-            sb.append(sender);
-            sb.append(": ");
-            sb.append(message.getText());
-            sb.append("\n");
+        Conversation conversation = null;
+        if (key != null)
+            conversation = sConversations.get(key);
+        if (conversation == null) {
+            conversation = new Conversation();
+            if (key != null)
+                sConversations.put(key, conversation);
         }
 
-        body = sb.toString().trim();
+        List<NotificationCompat.MessagingStyle.Message> messages = messagingStyle.getMessages();
+        // Posts of one notification are parsed in order, but a refresh may parse it meanwhile.
+        synchronized (conversation) {
+            long newest = Long.MIN_VALUE;
+            for (NotificationCompat.MessagingStyle.Message message : messages)
+                newest = Math.max(newest, message.getTimestamp());
+            // The app replaced the history, render it from scratch.
+            boolean replacesHistory = newest < conversation.newest;
+
+            List<RenderedMessage> added = new ArrayList<>();
+            for (NotificationCompat.MessagingStyle.Message message : messages) {
+                String line = formatMessage(messagingStyle, message);
+                if (replacesHistory || !conversation.isSent(message.getTimestamp(), line.hashCode()))
+                    added.add(new RenderedMessage(message.getTimestamp(), line));
+            }
+            added.sort((m1, m2) -> Long.compare(m1.timestamp, m2.timestamp));
+
+            // Only the newest messages make it to the watch.
+            ArrayDeque<String> lines = new ArrayDeque<>();
+            if (!replacesHistory)
+                lines.addAll(conversation.lines);
+            for (int i = Math.max(0, added.size() - MAX_MESSAGES); i < added.size(); i++)
+                lines.addFirst(added.get(i).line);
+            while (lines.size() > MAX_MESSAGES)
+                lines.removeLast();
+            this.messages = new ArrayList<>(lines);
+            body = TextUtils.join("\n", lines).trim();
+
+            if (key != null) {
+                mConversation = conversation;
+                mReplacesHistory = replacesHistory;
+                mAdded = added;
+            }
+        }
 
         return true;
     }
 
+    private String formatMessage(NotificationCompat.MessagingStyle messagingStyle,
+                                 NotificationCompat.MessagingStyle.Message message)
+    {
+        String sender;
+        if (message.getPerson() == null)
+            sender = formatCharSequence(messagingStyle.getUser().getName());
+        else
+            sender = formatCharSequence(message.getPerson().getName());
+
+        return sender + ": " + message.getText();
+    }
+
     private boolean parseInboxNotification(Bundle extras)
     {
         CharSequence summaryTextSequence = extras.getCharSequence(Notification.EXTRA_SUMMARY_TEXT);
@@ -238,58 +404,123 @@ public class NotificationParser {
         parseRemoteView(views);
     }
 
-    @SuppressLint("DiscouragedPrivateApi")
-    @SuppressWarnings("unchecked")
-    private void parseRemoteView(RemoteViews views) {
-        try {
-            Class<RemoteViews> remoteViewsClass = RemoteViews.class;
-            @SuppressLint("PrivateApi")
-            Class<?> baseActionClass = Class.forName("android.widget.RemoteViews$Action");
+    /**
+     * The private fields of RemoteViews that hold the text of its views.
+     */
+    private static final class RemoteViewsFields {
+        // Fields that could not be resolved, the views are not parsed then.
+        static final RemoteViewsFields UNSUPPORTED = new RemoteViewsFields(null, null);
+
+        final Field actions;
+        // Null if the actions do not have a view id.
+        final Field viewId;
+        // The type and value fields by action class, ActionFields.NONE for other actions.
+        final ConcurrentHashMap<Class<?>, ActionFields> actionFields = new ConcurrentHashMap<>();
+
+        RemoteViewsFields(Field actions, Field viewId) {
+            this.actions = actions;
+            this.viewId = viewId;
+        }
 
-            Field actionsField;
+        @SuppressLint({"DiscouragedPrivateApi", "PrivateApi"})
+        static RemoteViewsFields resolve() {
             // TODO Before upgrading version code, ensure the below still works with the newer code
-            if (android.os.Build.VERSION.SDK_INT <= Build.VERSION_CODES.TIRAMISU) {
+            if (Build.VERSION.SDK_INT > Build.VERSION_CODES.TIRAMISU)
+                return UNSUPPORTED;
+            try {
                 //noinspection JavaReflectionMemberAccess
-                actionsField = remoteViewsClass.getDeclaredField("mActions");
-            } else {
-                return;
+                Field actions = RemoteViews.class.getDeclaredField("mActions");
+                actions.setAccessible(true);
+                Field viewId = null;
+                try {
+                    viewId = Class.forName("android.widget.RemoteViews$Action").getDeclaredField("viewId");
+                    viewId.setAccessible(true);
+                } catch (NoSuchFieldException ignored) {
+                }
+                return new RemoteViewsFields(actions, viewId);
+            } catch (Exception e) {
+                e.printStackTrace();
+                return UNSUPPORTED;
+            }
+        }
+
+        ActionFields getActionFields(Class<?> actionClass) {
+            ActionFields fields = actionFields.get(actionClass);
+            if (fields == null) {
+                fields = ActionFields.resolve(actionClass);
+                actionFields.put(actionClass, fields);
+            }
+            return fields;
+        }
+    }
+
+    private static final class ActionFields {
+        static final ActionFields NONE = new ActionFields(null, null);
+
+        final Field type;
+        final Field value;
+
+        ActionFields(Field type, Field value) {
+            this.type = type;
+            this.value = value;
+        }
+
+        static ActionFields resolve(Class<?> actionClass) {
+            if (!actionClass.getName().contains("$ReflectionAction"))
+                return NONE;
+            try {
+                Field type = actionClass.getDeclaredField("type");
+                type.setAccessible(true);
+                Field value = actionClass.getDeclaredField("value");
+                value.setAccessible(true);
+                return new ActionFields(type, value);
+            } catch (Exception e) {
+                e.printStackTrace();
+                return NONE;
             }
+        }
+    }
 
-            actionsField.setAccessible(true);
+    private static RemoteViewsFields getRemoteViewsFields() {
+        RemoteViewsFields fields = sRemoteViewsFields;
+        if (fields == null) {
+            fields = RemoteViewsFields.resolve();
+            sRemoteViewsFields = fields;
+        }
+        return fields;
+    }
 
-            ArrayList<Object> actions = (ArrayList<Object>) actionsField.get(views);
+    @SuppressWarnings("unchecked")
+    private void parseRemoteView(RemoteViews views) {
+        RemoteViewsFields fields = getRemoteViewsFields();
+        if (fields == RemoteViewsFields.UNSUPPORTED)
+            return;
+        try {
+            ArrayList<Object> actions = (ArrayList<Object>) fields.actions.get(views);
+            if (actions == null)
+                return;
 
             StringBuilder sb = new StringBuilder();
             sb.append(body);
+            // Views often repeat a text, e.g. a ticker and a title.
+            HashSet<String> seen = new HashSet<>();
 
             for (Object action : actions) {
-                if (!action.getClass().getName().contains("$ReflectionAction"))
+                ActionFields actionFields = fields.getActionFields(action.getClass());
+                if (actionFields == ActionFields.NONE)
                     continue;
 
-                Field typeField = action.getClass().getDeclaredField("type");
-                typeField.setAccessible(true);
-                int type = typeField.getInt(action);
-                if (type != 9 && type != 10)
+                int type = actionFields.type.getInt(action);
+                if (type != ACTION_TYPE_STRING && type != ACTION_TYPE_CHAR_SEQUENCE)
                     continue;
 
-
-                int viewId = -1;
-                try
-                {
-                    Field idField = baseActionClass.getDeclaredField("viewId");
-                    idField.setAccessible(true);
-                    viewId = idField.getInt(action);
-                }
-                catch (NoSuchFieldException ignored) {}
-
-                Field valueField = action.getClass().getDeclaredField("value");
-                valueField.setAccessible(true);
-                CharSequence value = (CharSequence) valueField.get(action);
+                int viewId = fields.viewId == null ? -1 : fields.viewId.getInt(action);
+                CharSequence value = (CharSequence) actionFields.value.get(action);
 
                 if (value == null ||
                         value.equals("...") ||
                         isInteger(value.toString()) ||
-                        body.contains(value))
+                        !seen.add(value.toString()))
                 {
                     continue;
                 }
@@ -306,6 +537,7 @@ public class NotificationParser {
             }
 
             body = sb.toString().trim();
+            path = ParsePath.REMOTE_VIEWS;
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -0,0 +1,227 @@
+/*
+ * AsteroidOSSync
+ * Copyright (c) 2023 AsteroidOS
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.asteroidos.sync.utils;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the work for incoming notifications off the listener thread. Jobs are striped by the
+ * notification key over a few workers, so that the jobs for one notification run in the order
+ * they were submitted while different notifications are handled in parallel.
+ *
+ * Every stripe holds a bounded number of queued jobs. A post that is still queued is replaced by
+ * a newer post of the same notification, and once a stripe is full its oldest droppable post is
+ * dropped. Jobs that are not droppable, such as removals, are always queued.
+ *
+ * The pipeline only captures, parses and hands the notifications over. Filtering by the
+ * preferences of the app and encoding for the watch stay on the main thread in the
+ * NotificationService, which owns the state they need. Their time is recorded here as well.
+ */
+public final class NotificationPipeline {
+    public enum Stage {
+        // Between the submission of a job and the start of its execution.
+        QUEUE,
+        // Extracting the fields of the notification.
+        PARSE,
+        // Handing the fields over to the NotificationService.
+        SEND,
+        // Preferences and duplicate checks in the NotificationService, on the main thread.
+        FILTER,
+        // Encoding and compressing for the watch in the NotificationService, on the main thread.
+        ENCODE
+    }
+
+    private final ExecutorService mExecutor;
+    private final Stripe[] mStripes;
+    private final int mCapacity;
+    private final long[] mCounts = new long[Stage.values().length];
+    private final long[] mTotalNanos = new long[Stage.values().length];
+    private final long[] mMaxNanos = new long[Stage.values().length];
+    private long mDropped = 0;
+    private long mCoalesced = 0;
+
+    public NotificationPipeline(int stripes, int capacity) {
+        mCapacity = capacity;
+        mStripes = new Stripe[stripes];
+        for (int i = 0; i < stripes; i++)
+            mStripes[i] = new Stripe();
+        AtomicInteger threads = new AtomicInteger();
+        mExecutor = Executors.newFixedThreadPool(stripes, runnable -> {
+            Thread thread = new Thread(runnable, "NotificationPipeline-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Queues a posted notification, replacing a post of the same key that did not start yet.
+     *
+     * @param droppable whether the post may be dropped when the stripe is full
+     */
+    public void post(String key, boolean droppable, Runnable job) {
+        enqueue(new Job(key, true, droppable, job));
+    }
+
+    /**
+     * Queues a job that is never dropped or replaced.
+     */
+    public void submit(String key, Runnable job) {
+        enqueue(new Job(key, false, false, job));
+    }
+
+    public synchronized void record(Stage stage, long nanos) {
+        int i = stage.ordinal();
+        mCounts[i]++;
+        mTotalNanos[i] += nanos;
+        mMaxNanos[i] = Math.max(mMaxNanos[i], nanos);
+    }
+
+    public void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    public synchronized String dump() {
+        StringBuilder sb = new StringBuilder("Notification pipeline\n");
+        for (Stage stage : Stage.values()) {
+            int i = stage.ordinal();
+            sb.append("  ").append(stage.name().toLowerCase()).append(' ')
+                    .append(mCounts[i]).append(" jobs, avg ")
+                    .append(mCounts[i] == 0 ? 0 : mTotalNanos[i] / mCounts[i] / 1000)
+                    .append(" us, max ").append(mMaxNanos[i] / 1000).append(" us\n");
+        }
+        sb.append("  ").append(mCoalesced).append(" posts replaced, ")
+                .append(mDropped).append(" posts dropped\n");
+        return sb.toString();
+    }
+
+    private void enqueue(Job job) {
+        Stripe stripe = mStripes[(job.key.hashCode() & Integer.MAX_VALUE) % mStripes.length];
+        int result = stripe.offer(job);
+        if (result != Stripe.QUEUED) {
+            synchronized (this) {
+                if (result == Stripe.REPLACED)
+                    mCoalesced++;
+                else
+                    mDropped++;
+            }
+        }
+    }
+
+    private static final class Job {
+        final String key;
+        final boolean post;
+        final long submitted = System.nanoTime();
+        // Replaced by a newer post while the job is queued, guarded by the lock of the stripe.
+        boolean droppable;
+        Runnable runnable;
+
+        Job(String key, boolean post, boolean droppable, Runnable runnable) {
+            this.key = key;
+            this.post = post;
+            this.droppable = droppable;
+            this.runnable = runnable;
+        }
+    }
+
+    /**
+     * Runs its jobs one after the other on the executor, it is only scheduled while it has jobs.
+     */
+    private final class Stripe implements Runnable {
+        static final int QUEUED = 0;
+        static final int REPLACED = 1;
+        static final int DROPPED = 2;
+
+        private final ArrayDeque<Job> mJobs = new ArrayDeque<>();
+        private boolean mScheduled = false;
+
+        synchronized int offer(Job job) {
+            if (job.post && replace(job))
+                return REPLACED;
+            int result = QUEUED;
+            if (mJobs.size() >= mCapacity) {
+                if (dropOldest())
+                    result = DROPPED;
+                else if (job.droppable)
+                    return DROPPED;
+            }
+            mJobs.add(job);
+            if (!mScheduled) {
+                mScheduled = true;
+                mExecutor.execute(this);
+            }
+            return result;
+        }
+
+        /**
+         * Replaces the last queued job of the same key if that is a post. The newer post takes
+         * over its place in the queue. A post queued before a later removal has to stay, the
+         * removal would otherwise overtake it.
+         */
+        private boolean replace(Job job) {
+            Iterator<Job> it = mJobs.descendingIterator();
+            while (it.hasNext()) {
+                Job queued = it.next();
+                if (!queued.key.equals(job.key))
+                    continue;
+                if (!queued.post)
+                    return false;
+                queued.droppable = job.droppable;
+                queued.runnable = job.runnable;
+                return true;
+            }
+            return false;
+        }
+
+        private boolean dropOldest() {
+            Iterator<Job> it = mJobs.iterator();
+            while (it.hasNext()) {
+                if (it.next().droppable) {
+                    it.remove();
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Job job;
+                synchronized (this) {
+                    job = mJobs.poll();
+                    if (job == null) {
+                        mScheduled = false;
+                        return;
+                    }
+                }
+                record(Stage.QUEUE, System.nanoTime() - job.submitted);
+                try {
+                    job.runnable.run();
+                } catch (RuntimeException e) {
+                    // A notification that fails to parse must not stop the ones queued after it.
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
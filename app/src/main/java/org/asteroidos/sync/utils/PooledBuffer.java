@@ -0,0 +1,238 @@
+/*
+ * AsteroidOSSync
+ * Copyright (c) 2023 AsteroidOS
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.asteroidos.sync.utils;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * A growable byte buffer that messages for the watch are encoded into. Like
+ * {@link android.os.Message}, buffers are taken from a small global pool with
+ * {@link #obtain()} and given back with {@link #recycle()} once the data was written, so
+ * encoding a message does not leave garbage behind.
+ */
+public final class PooledBuffer {
+    private static final int MAX_POOL_SIZE = 8;
+    private static final int DEFAULT_CAPACITY = 512;
+    // Buffers that grew larger than this are not kept around after a huge message.
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+    private static final ArrayDeque<PooledBuffer> sPool = new ArrayDeque<>();
+
+    private byte[] mBuf;
+    private int mCount;
+
+    private PooledBuffer() {
+        mBuf = new byte[DEFAULT_CAPACITY];
+    }
+
+    /**
+     * @return an empty buffer from the pool, or a new one if the pool is empty
+     */
+    public static PooledBuffer obtain() {
+        synchronized (sPool) {
+            PooledBuffer buffer = sPool.pollFirst();
+            if (buffer != null)
+                return buffer;
+        }
+        return new PooledBuffer();
+    }
+
+    /**
+     * Returns the buffer to the pool. The buffer must not be used afterwards.
+     */
+    public void recycle() {
+        mCount = 0;
+        if (mBuf.length > MAX_RETAINED_CAPACITY)
+            mBuf = new byte[DEFAULT_CAPACITY];
+        synchronized (sPool) {
+            if (sPool.size() < MAX_POOL_SIZE)
+                sPool.addFirst(this);
+        }
+    }
+
+    /**
+     * @return the backing array, only the first {@link #size()} bytes are valid
+     */
+    public byte[] array() {
+        return mBuf;
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    public void reset() {
+        mCount = 0;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(mBuf, mCount);
+    }
+
+    public void write(int b) {
+        ensureCapacity(mCount + 1);
+        mBuf[mCount++] = (byte) b;
+    }
+
+    public void write(byte[] b, int off, int len) {
+        ensureCapacity(mCount + len);
+        System.arraycopy(b, off, mBuf, mCount, len);
+        mCount += len;
+    }
+
+    /**
+     * Writes a string that is known to only contain ASCII characters, like XML tags.
+     */
+    public void writeAscii(String s) {
+        int length = s.length();
+        ensureCapacity(mCount + length);
+        for (int i = 0; i < length; i++)
+            mBuf[mCount++] = (byte) s.charAt(i);
+    }
+
+    public void writeDecimal(int value) {
+        if (value == Integer.MIN_VALUE) {
+            writeAscii("-2147483648");
+            return;
+        }
+        if (value < 0) {
+            write('-');
+            value = -value;
+        }
+        int digits = 1;
+        for (int v = value; v >= 10; v /= 10)
+            digits++;
+        ensureCapacity(mCount + digits);
+        for (int i = mCount + digits - 1; i >= mCount; i--) {
+            mBuf[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        mCount += digits;
+    }
+
+    /**
+     * Writes the value as an unsigned LEB128 varint, seven bits per byte with the lowest first.
+     */
+    public void writeVarint(int value) {
+        ensureCapacity(mCount + 5);
+        while ((value & ~0x7F) != 0) {
+            mBuf[mCount++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        mBuf[mCount++] = (byte) value;
+    }
+
+    /**
+     * Writes the UTF-8 length of the characters as varint, followed by the characters. The
+     * length takes as many bytes as the longest possible encoding of the characters would need,
+     * so that they are encoded in a single pass. Varint decoders accept the padding.
+     *
+     * @param maxBytes the characters are truncated to at most this many bytes
+     * @return whether all characters fit
+     */
+    public boolean writeLengthPrefixedUtf8(CharSequence s, int maxBytes) {
+        int width = 1;
+        for (long max = Math.min(s.length() * 3L, maxBytes); max > 0x7F; max >>>= 7)
+            width++;
+        ensureCapacity(mCount + width);
+        int start = mCount;
+        mCount += width;
+        boolean complete = writeUtf8(s, maxBytes);
+        int length = mCount - start - width;
+        for (int i = start; i < start + width - 1; i++) {
+            mBuf[i] = (byte) ((length & 0x7F) | 0x80);
+            length >>>= 7;
+        }
+        mBuf[start + width - 1] = (byte) length;
+        return complete;
+    }
+
+    /**
+     * Encodes the characters as UTF-8 without creating an intermediate array. Unpaired
+     * surrogates are replaced by '?', like {@link String#getBytes(java.nio.charset.Charset)} does.
+     */
+    public void writeUtf8(CharSequence s) {
+        writeUtf8(s, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Like {@link #writeUtf8(CharSequence)}, but stops before the first character that does not
+     * fit into maxBytes, so the output always ends on a character boundary.
+     *
+     * @return whether all characters fit
+     */
+    public boolean writeUtf8(CharSequence s, int maxBytes) {
+        return writeUtf8(s, 0, s.length(), maxBytes) == s.length();
+    }
+
+    /**
+     * Encodes the characters from start to end like {@link #writeUtf8(CharSequence, int)}.
+     *
+     * @return the index of the first character that was not written, end if all fit
+     */
+    public int writeUtf8(CharSequence s, int start, int end, int maxBytes) {
+        long limit = (long) mCount + maxBytes;
+        ensureCapacity((int) Math.min(mCount + (long) (end - start), limit));
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                if (mCount + 1 > limit)
+                    return i;
+                ensureCapacity(mCount + 1);
+                mBuf[mCount++] = (byte) c;
+            } else if (c < 0x800) {
+                if (mCount + 2 > limit)
+                    return i;
+                ensureCapacity(mCount + 2);
+                mBuf[mCount++] = (byte) (0xC0 | (c >> 6));
+                mBuf[mCount++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    if (mCount + 4 > limit)
+                        return i;
+                    int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                    ensureCapacity(mCount + 4);
+                    mBuf[mCount++] = (byte) (0xF0 | (codePoint >> 18));
+                    mBuf[mCount++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                    mBuf[mCount++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                    mBuf[mCount++] = (byte) (0x80 | (codePoint & 0x3F));
+                } else {
+                    if (mCount + 1 > limit)
+                        return i;
+                    ensureCapacity(mCount + 1);
+                    mBuf[mCount++] = '?';
+                }
+            } else {
+                if (mCount + 3 > limit)
+                    return i;
+                ensureCapacity(mCount + 3);
+                mBuf[mCount++] = (byte) (0xE0 | (c >> 12));
+                mBuf[mCount++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                mBuf[mCount++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return end;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > mBuf.length)
+            mBuf = Arrays.copyOf(mBuf, Math.max(capacity, mBuf.length * 2));
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * AsteroidOSSync
+ * Copyright (c) 2023 AsteroidOS
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.asteroidos.sync.utils;
+
+import java.util.Calendar;
+
+/**
+ * Encodes the values of the time and weather services in the format the watch expects.
+ *
+ * Kept free of Android dependencies, so that the encoders can be benchmarked on a plain JVM.
+ */
+public class WireFormat {
+    public static final int FORECAST_DAYS = 5;
+
+    /**
+     * The 3-hourly data points of a weather forecast, in chronological order.
+     */
+    public interface ForecastSource {
+        int size();
+        // Seconds since the epoch.
+        long getTimestamp(int index);
+        short getWeatherId(int index);
+        float getTemperature(int index);
+    }
+
+    /**
+     * @return years since 1900, month, day, hour, minute and second of the calendar
+     */
+    public static byte[] packTime(Calendar c) {
+        byte[] data = new byte[6];
+        data[0] = (byte) (c.get(Calendar.YEAR) - 1900);
+        data[1] = (byte) (c.get(Calendar.MONTH));
+        data[2] = (byte) (c.get(Calendar.DAY_OF_MONTH));
+        data[3] = (byte) (c.get(Calendar.HOUR_OF_DAY));
+        data[4] = (byte) (c.get(Calendar.MINUTE));
+        data[5] = (byte) (c.get(Calendar.SECOND));
+        return data;
+    }
+
+    /**
+     * Packs the weather id and the temperature range of every forecast day as big endian 16 bit
+     * values into the given arrays, which need room for {@link #FORECAST_DAYS} values.
+     */
+    public static void packForecast(ForecastSource l, byte[] ids, byte[] minTemps, byte[] maxTemps) {
+        int currentDay, i = 0;
+
+        for (int j = 0; j < FORECAST_DAYS && i < l.size(); j++) { // For each day of forecast
+            currentDay = dayOfTimestamp(l.getTimestamp(i));
+            short min = Short.MAX_VALUE;
+            short max = Short.MIN_VALUE;
+            int id = 0;
+            while (i < l.size() && dayOfTimestamp(l.getTimestamp(i)) == currentDay) { // For each data point of the day
+                // TODO is there a better way to select the most significant ID than the first of the afternoon ?
+                if (hourOfTimestamp(l.getTimestamp(i)) >= 12 && id == 0)
+                    id = l.getWeatherId(i);
+
+                short currentTemp = (short) Math.round(l.getTemperature(i));
+                if (currentTemp > max) max = currentTemp;
+                if (currentTemp < min) min = currentTemp;
+
+                currentDay = dayOfTimestamp(l.getTimestamp(i));
+                i = i + 1;
+            }
+
+            ids[2 * j] = (byte) (id >> 8);
+            ids[2 * j + 1] = (byte) id;
+            maxTemps[2 * j] = (byte) (max >> 8);
+            maxTemps[2 * j + 1] = (byte) max;
+            minTemps[2 * j] = (byte) (min >> 8);
+            minTemps[2 * j + 1] = (byte) min;
+        }
+    }
+
+    private static int dayOfTimestamp(long timestamp) {
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(timestamp * 1000);
+        return cal.get(Calendar.DAY_OF_WEEK);
+    }
+
+    private static int hourOfTimestamp(long timestamp) {
+        Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(timestamp * 1000);
+        return cal.get(Calendar.HOUR_OF_DAY);
+    }
+}
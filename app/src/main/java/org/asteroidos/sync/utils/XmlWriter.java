@@ -0,0 +1,98 @@
+/*
+ * AsteroidOSSync
+ * Copyright (c) 2023 AsteroidOS
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.asteroidos.sync.utils;
+
+/**
+ * Writes XML straight into a {@link PooledBuffer} as UTF-8, in a single pass and without building
+ * strings first. Text is escaped as it is written and can be limited to a number of bytes, it is
+ * then cut before the first character that does not fit, never inside a UTF-8 sequence or an
+ * entity. A writer can be reused for any number of messages with {@link #setOutput(PooledBuffer)}.
+ */
+public final class XmlWriter {
+    private PooledBuffer mOut;
+
+    public XmlWriter() {
+    }
+
+    public XmlWriter(PooledBuffer out) {
+        mOut = out;
+    }
+
+    public XmlWriter setOutput(PooledBuffer out) {
+        mOut = out;
+        return this;
+    }
+
+    public XmlWriter startTag(String name) {
+        mOut.write('<');
+        mOut.writeAscii(name);
+        mOut.write('>');
+        return this;
+    }
+
+    public XmlWriter endTag(String name) {
+        mOut.writeAscii("</");
+        mOut.writeAscii(name);
+        mOut.write('>');
+        return this;
+    }
+
+    public XmlWriter decimal(int value) {
+        mOut.writeDecimal(value);
+        return this;
+    }
+
+    /**
+     * Writes the escaped text. Control characters that XML does not allow are left out.
+     *
+     * @param maxBytes the escaped text is truncated to at most this many bytes
+     * @return whether all of the text fit
+     */
+    public boolean text(CharSequence text, int maxBytes) {
+        final int length = text.length();
+        final long limit = (long) mOut.size() + maxBytes;
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            String entity;
+            if (c == '&')
+                entity = "&amp;";
+            else if (c == '<')
+                entity = "&lt;";
+            else if (c == '>')
+                entity = "&gt;";
+            else if (c < 0x20 && c != '\t' && c != '\n' && c != '\r')
+                entity = "";
+            else
+                continue;
+            // Everything up to here needs no escaping.
+            if (mOut.writeUtf8(text, start, i, remaining(limit)) != i)
+                return false;
+            if (mOut.size() + entity.length() > limit)
+                return false;
+            mOut.writeAscii(entity);
+            start = i + 1;
+        }
+        return mOut.writeUtf8(text, start, length, remaining(limit)) == length;
+    }
+
+    private int remaining(long limit) {
+        return (int) Math.min(limit - mOut.size(), Integer.MAX_VALUE);
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * AsteroidOSSync
+ * Copyright (c) 2023 AsteroidOS
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.asteroidos.sync.asteroid;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.asteroidos.sync.connectivity.IConnectivityService;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.List;
+import java.util.UUID;
+
+public class OutboxTest {
+    private static final long TTL_MS = 60 * 60 * 1000;
+    private static final UUID SERVICE = UUID.randomUUID();
+    private static final UUID CHARACTERISTIC = UUID.randomUUID();
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static void add(Outbox outbox, IConnectivityService.Priority priority, String dedupeKey, long ttl, byte... data) {
+        outbox.add(CHARACTERISTIC, SERVICE, priority, data, 0, data.length, dedupeKey, ttl);
+    }
+
+    private static void close(Outbox outbox) throws InterruptedException {
+        outbox.close();
+        assertTrue(outbox.awaitClosed(5000));
+    }
+
+    /**
+     * @return the entries of the journal, once it was read
+     */
+    private static List<Outbox.Entry> reopen(File file) throws InterruptedException {
+        Outbox outbox = new Outbox(file);
+        close(outbox);
+        return outbox.takeAll();
+    }
+
+    @Test
+    public void entriesSurviveAReopen() throws Exception {
+        File file = new File(mFolder.getRoot(), "outbox");
+        Outbox outbox = new Outbox(file);
+        add(outbox, IConnectivityService.Priority.BACKGROUND, null, TTL_MS, (byte) 1, (byte) 2);
+        add(outbox, IConnectivityService.Priority.ALERT, "call", TTL_MS, (byte) 3);
+        add(outbox, IConnectivityService.Priority.BACKGROUND, null, TTL_MS, (byte) 4);
+        close(outbox);
+
+        List<Outbox.Entry> entries = reopen(file);
+        assertEquals(3, entries.size());
+        // Most urgent first, in the order they were added within a priority.
+        assertEquals(IConnectivityService.Priority.ALERT, entries.get(0).priority);
+        assertEquals("call", entries.get(0).dedupeKey);
+        assertArrayEquals(new byte[]{3}, entries.get(0).data);
+        assertArrayEquals(new byte[]{1, 2}, entries.get(1).data);
+        assertNull(entries.get(1).dedupeKey);
+        assertArrayEquals(new byte[]{4}, entries.get(2).data);
+        assertEquals(CHARACTERISTIC, entries.get(2).characteristic);
+        assertEquals(SERVICE, entries.get(2).service);
+    }
+
+    @Test
+    public void replacedEntriesStayRemoved() throws Exception {
+        File file = new File(mFolder.getRoot(), "outbox");
+        Outbox outbox = new Outbox(file);
+        add(outbox, IConnectivityService.Priority.NOTIFICATION, "n/1", TTL_MS, (byte) 1);
+        add(outbox, IConnectivityService.Priority.NOTIFICATION, "n/1#0", TTL_MS, (byte) 2);
+        add(outbox, IConnectivityService.Priority.NOTIFICATION, "n/10#1", TTL_MS, (byte) 3);
+        // Replaces the insert and drops the update that builds upon it.
+        add(outbox, IConnectivityService.Priority.NOTIFICATION, "n/1", TTL_MS, (byte) 4);
+        assertEquals(2, outbox.size());
+        close(outbox);
+
+        List<Outbox.Entry> entries = reopen(file);
+        assertEquals(2, entries.size());
+        assertEquals("n/10#1", entries.get(0).dedupeKey);
+        assertArrayEquals(new byte[]{4}, entries.get(1).data);
+    }
+
+    @Test
+    public void expiredEntriesAreNotLoaded() throws Exception {
+        File file = new File(mFolder.getRoot(), "outbox");
+        Outbox outbox = new Outbox(file);
+        add(outbox, IConnectivityService.Priority.MEDIA, null, 0, (byte) 1);
+        add(outbox, IConnectivityService.Priority.MEDIA, null, TTL_MS, (byte) 2);
+        close(outbox);
+
+        List<Outbox.Entry> entries = reopen(file);
+        assertEquals(1, entries.size());
+        assertArrayEquals(new byte[]{2}, entries.get(0).data);
+    }
+
+    @Test
+    public void damagedTailKeepsTheEntriesBeforeIt() throws Exception {
+        File file = new File(mFolder.getRoot(), "outbox");
+        Outbox outbox = new Outbox(file);
+        add(outbox, IConnectivityService.Priority.NOTIFICATION, null, TTL_MS, (byte) 1);
+        close(outbox);
+        // An ADD record cut short, as if the process was killed while writing it.
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(new byte[]{'A', 0, 0, 0});
+        }
+
+        List<Outbox.Entry> entries = reopen(file);
+        assertEquals(1, entries.size());
+        assertArrayEquals(new byte[]{1}, entries.get(0).data);
+    }
+}
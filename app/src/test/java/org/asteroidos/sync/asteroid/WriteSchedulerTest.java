@@ -0,0 +1,159 @@
+/*
+ * AsteroidOSSync
+ * Copyright (c) 2023 AsteroidOS
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.asteroidos.sync.asteroid;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.asteroidos.sync.connectivity.IConnectivityService;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+
+public class WriteSchedulerTest {
+    private static final UUID CHARACTERISTIC = UUID.randomUUID();
+
+    private static class TestService implements IConnectivityService {
+        private final UUID mServiceUUID = UUID.randomUUID();
+        private final Priority mPriority;
+
+        TestService(Priority priority) {
+            mPriority = priority;
+        }
+
+        @Override
+        public void sync() {
+        }
+
+        @Override
+        public void unsync() {
+        }
+
+        @Override
+        public HashMap<UUID, Direction> getCharacteristicUUIDs() {
+            return new HashMap<>();
+        }
+
+        @Override
+        public HashMap<UUID, WriteMode> getCharacteristicWriteModes() {
+            return new HashMap<>();
+        }
+
+        @Override
+        public Priority getPriority() {
+            return mPriority;
+        }
+
+        @Override
+        public int getWeight() {
+            return WriteScheduler.DEFAULT_WEIGHT;
+        }
+
+        @Override
+        public UUID getServiceUUID() {
+            return mServiceUUID;
+        }
+    }
+
+    private static PendingWrite write(IConnectivityService service, int length) {
+        return new PendingWrite(CHARACTERISTIC, new byte[length], service, service.getPriority());
+    }
+
+    private static List<IConnectivityService> drainServices(WriteScheduler scheduler) {
+        List<IConnectivityService> services = new ArrayList<>();
+        for (PendingWrite write : scheduler.drain())
+            services.add(write.service);
+        return services;
+    }
+
+    @Test
+    public void pollServesMoreUrgentClassesFirst() {
+        WriteScheduler scheduler = new WriteScheduler();
+        TestService weather = new TestService(IConnectivityService.Priority.BACKGROUND);
+        TestService media = new TestService(IConnectivityService.Priority.MEDIA);
+        TestService call = new TestService(IConnectivityService.Priority.ALERT);
+        scheduler.enqueue(write(weather, 20));
+        scheduler.enqueue(write(media, 20));
+        scheduler.enqueue(write(call, 20));
+
+        assertEquals(1, scheduler.getQueueDepth(IConnectivityService.Priority.ALERT));
+        assertEquals(List.of(call, media, weather), drainServices(scheduler));
+        assertNull(scheduler.poll());
+        assertEquals(0, scheduler.size());
+    }
+
+    @Test
+    public void servicesOfAClassShareTheLinkRoundRobin() {
+        WriteScheduler scheduler = new WriteScheduler();
+        TestService a = new TestService(IConnectivityService.Priority.NOTIFICATION);
+        TestService b = new TestService(IConnectivityService.Priority.NOTIFICATION);
+        for (int i = 0; i < 3; i++)
+            scheduler.enqueue(write(a, 512));
+        for (int i = 0; i < 3; i++)
+            scheduler.enqueue(write(b, 512));
+
+        assertEquals(List.of(a, b, a, b, a, b), drainServices(scheduler));
+    }
+
+    @Test
+    public void weightScalesTheShareOfAService() {
+        WriteScheduler scheduler = new WriteScheduler();
+        TestService a = new TestService(IConnectivityService.Priority.MEDIA);
+        TestService b = new TestService(IConnectivityService.Priority.MEDIA);
+        scheduler.setWeight(a, 2);
+        for (int i = 0; i < 4; i++)
+            scheduler.enqueue(write(a, 512));
+        for (int i = 0; i < 4; i++)
+            scheduler.enqueue(write(b, 512));
+
+        assertEquals(List.of(a, a, b, a, a, b, b, b), drainServices(scheduler));
+    }
+
+    @Test
+    public void longWritesDoNotStarveShortOnes() {
+        WriteScheduler scheduler = new WriteScheduler();
+        TestService bulk = new TestService(IConnectivityService.Priority.NOTIFICATION);
+        TestService small = new TestService(IConnectivityService.Priority.NOTIFICATION);
+        scheduler.enqueue(write(bulk, 1024));
+        scheduler.enqueue(write(bulk, 1024));
+        scheduler.enqueue(write(small, 16));
+
+        // The long write has to save up for two rounds, the short one goes first.
+        assertEquals(List.of(small, bulk, bulk), drainServices(scheduler));
+    }
+
+    @Test
+    public void lastValueWinsReplacesTheQueuedWrite() {
+        WriteScheduler scheduler = new WriteScheduler();
+        TestService media = new TestService(IConnectivityService.Priority.MEDIA);
+        scheduler.setWriteMode(CHARACTERISTIC, IConnectivityService.WriteMode.LAST_VALUE_WINS);
+        scheduler.enqueue(new PendingWrite(CHARACTERISTIC, new byte[]{1}, media, media.getPriority()));
+        scheduler.enqueue(new PendingWrite(CHARACTERISTIC, new byte[]{2}, media, media.getPriority()));
+
+        assertEquals(1, scheduler.size());
+        assertEquals(1, scheduler.getCoalescedCount());
+        PendingWrite write = scheduler.poll();
+        assertArrayEquals(new byte[]{2}, write.data);
+        assertNull(scheduler.poll());
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * AsteroidOSSync
+ * Copyright (c) 2023 AsteroidOS
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.asteroidos.sync.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+public class XmlWriterTest {
+    private PooledBuffer mBuffer;
+    private XmlWriter mWriter;
+
+    @Before
+    public void setUp() {
+        mBuffer = PooledBuffer.obtain();
+        mWriter = new XmlWriter(mBuffer);
+    }
+
+    @After
+    public void tearDown() {
+        mBuffer.recycle();
+    }
+
+    private String written() {
+        return new String(mBuffer.array(), 0, mBuffer.size(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void markupCharactersAreEscaped() {
+        assertTrue(mWriter.text("a < b && c > d", Integer.MAX_VALUE));
+        assertEquals("a &lt; b &amp;&amp; c &gt; d", written());
+    }
+
+    @Test
+    public void controlCharactersAreLeftOut() {
+        assertTrue(mWriter.text("a\u0000b\u0007c\td\ne\rf", Integer.MAX_VALUE));
+        assertEquals("abc\td\ne\rf", written());
+    }
+
+    @Test
+    public void elementsWrapTheEscapedText() {
+        mWriter.startTag("su");
+        mWriter.text("Tom & Jerry", Integer.MAX_VALUE);
+        mWriter.endTag("su");
+        mWriter.startTag("id").decimal(-42).endTag("id");
+        assertEquals("<su>Tom &amp; Jerry</su><id>-42</id>", written());
+    }
+
+    @Test
+    public void truncationNeverSplitsAnEntity() {
+        assertFalse(mWriter.text("ab&c", 4));
+        assertEquals("ab", written());
+    }
+
+    @Test
+    public void truncationNeverSplitsACharacter() {
+        // "é" takes two bytes and the emoji four, the budget ends inside of them.
+        assertFalse(mWriter.text("aé", 2));
+        assertEquals("a", written());
+        mBuffer.reset();
+        assertFalse(mWriter.text("a\uD83D\uDE00", 4));
+        assertEquals("a", written());
+    }
+
+    @Test
+    public void textThatFitsExactlyIsComplete() {
+        assertTrue(mWriter.text("a&b", 7));
+        assertEquals("a&amp;b", written());
+    }
+}
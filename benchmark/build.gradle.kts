@@ -0,0 +1,56 @@
+plugins {
+    `java-library`
+    application
+    id("me.champeau.jmh") version "0.6.8"
+}
+
+java {
+    sourceCompatibility = JavaVersion.VERSION_17
+    targetCompatibility = JavaVersion.VERSION_17
+}
+
+// The transport code of the app does not depend on Android. It is compiled from the app sources
+// here, so that it can be driven by the simulated watch and measured on a plain JVM.
+sourceSets {
+    named("main") {
+        java {
+            srcDir("../app/src/main/java")
+            include("org/asteroidos/sync/sim/**")
+            include("org/asteroidos/sync/asteroid/ChunkSplitter.java")
+            include("org/asteroidos/sync/asteroid/IAsteroidDevice.java")
+            include("org/asteroidos/sync/asteroid/PendingWrite.java")
+            include("org/asteroidos/sync/asteroid/TransportMetrics.java")
+            include("org/asteroidos/sync/asteroid/WriteScheduler.java")
+            include("org/asteroidos/sync/connectivity/IConnectivityService.java")
+            include("org/asteroidos/sync/connectivity/IService.java")
+            include("org/asteroidos/sync/connectivity/IServiceCallback.java")
+            include("org/asteroidos/sync/dataobjects/Notification.java")
+            include("org/asteroidos/sync/utils/AsteroidUUIDS.java")
+            include("org/asteroidos/sync/utils/NotificationDeflater.java")
+            include("org/asteroidos/sync/utils/PooledBuffer.java")
+            include("org/asteroidos/sync/utils/WireFormat.java")
+            include("org/asteroidos/sync/utils/XmlWriter.java")
+        }
+    }
+}
+
+// The payloads hold non-ASCII text, such as emoji and accented words.
+tasks.withType<JavaCompile>().configureEach {
+    options.encoding = "UTF-8"
+}
+
+application {
+    mainClass.set("org.asteroidos.sync.sim.Simulation")
+}
+
+// ./gradlew :benchmark:jmh
+jmh {
+    jmhVersion.set("1.36")
+    // Report the allocation rate next to the time of every benchmark.
+    profilers.set(listOf("gc"))
+    fork.set(1)
+    warmupIterations.set(3)
+    iterations.set(5)
+    timeUnit.set("ns")
+    benchmarkMode.set(listOf("avgt"))
+}
@@ -0,0 +1,81 @@
+/*
+ * AsteroidOSSync
+ * Copyright (c) 2023 AsteroidOS
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.asteroidos.sync.bench;
+
+import org.asteroidos.sync.asteroid.ChunkSplitter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+
+/**
+ * Splitting of a message into the chunks of a write.
+ */
+@State(Scope.Thread)
+public class ChunkingBenchmark {
+    @Param({"200", "4433", "16000"})
+    public int messageLength;
+
+    // MTU 247, which most phones negotiate, and MTU 517, the largest one.
+    @Param({"244", "514"})
+    public int maxLength;
+
+    private byte[] mMessage;
+
+    @Setup
+    public void setup() {
+        mMessage = new byte[messageLength];
+        new Random(1).nextBytes(mMessage);
+    }
+
+    /**
+     * The CAPPED_SPLITTER that AsteroidBleManager used before ChunkSplitter: a new array per chunk.
+     */
+    @Benchmark
+    public void cappedSplitter(Blackhole blackhole) {
+        byte[] chunk;
+        for (int i = 0; (chunk = cappedChunk(mMessage, i, maxLength)) != null; i++)
+            blackhole.consume(chunk);
+    }
+
+    @Benchmark
+    public void chunkSplitter(Blackhole blackhole) {
+        ChunkSplitter splitter = new ChunkSplitter();
+        byte[] chunk;
+        for (int i = 0; (chunk = splitter.chunk(mMessage, i, maxLength)) != null; i++)
+            blackhole.consume(chunk);
+        splitter.recycle();
+    }
+
+    private static byte[] cappedChunk(byte[] message, int index, int maxLength) {
+        final int size = Math.min(maxLength, ChunkSplitter.MAX_ATTRIBUTE_LENGTH);
+        final int offset = index * size;
+        if (offset >= message.length)
+            return null;
+        final int length = Math.min(size, message.length - offset);
+        final byte[] chunk = new byte[length];
+        System.arraycopy(message, offset, chunk, 0, length);
+        return chunk;
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * AsteroidOSSync
+ * Copyright (c) 2023 AsteroidOS
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.asteroidos.sync.bench;
+
+import org.asteroidos.sync.dataobjects.Notification;
+import org.asteroidos.sync.sim.Payloads;
+import org.asteroidos.sync.utils.NotificationDeflater;
+import org.asteroidos.sync.utils.PooledBuffer;
+import org.asteroidos.sync.utils.XmlWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encoding of a posted notification, from a one line message up to a long MessagingStyle chat.
+ */
+@State(Scope.Thread)
+public class NotificationEncodingBenchmark {
+    @Param({"100", "4000", "16000"})
+    public int bodyLength;
+
+    private Notification mNotification;
+    private String mSummary;
+    private String mBody;
+    private final XmlWriter mXmlWriter = new XmlWriter();
+    private final NotificationDeflater mDeflater = new NotificationDeflater();
+
+    @Setup
+    public void setup() {
+        Payloads payloads = new Payloads(1);
+        mSummary = payloads.text(24);
+        mBody = payloads.text(bodyLength);
+        mNotification = new Notification(Notification.MsgType.POSTED, "org.example.chat", 42, "Chat",
+                "ios-chatbubbles", mSummary, mBody, "normal");
+    }
+
+    @Benchmark
+    public String toXML() {
+        return mNotification.toXML();
+    }
+
+    @Benchmark
+    public byte[] toBytes() {
+        return mNotification.toBytes();
+    }
+
+    /**
+     * The path NotificationService took before the pooled buffers: a String concatenated with +=,
+     * without escaping or budgets, then its bytes.
+     */
+    @Benchmark
+    public byte[] xmlStringBytes() {
+        String xmlRequest = "<insert><id>" + 42 + "</id>";
+        xmlRequest += "<pn>" + "org.example.chat" + "</pn>";
+        xmlRequest += "<vb>" + "normal" + "</vb>";
+        xmlRequest += "<an>" + "Chat" + "</an>";
+        xmlRequest += "<ai>" + "ios-chatbubbles" + "</ai>";
+        xmlRequest += "<su>" + mSummary + "</su>";
+        xmlRequest += "<bo>" + mBody + "</bo>";
+        xmlRequest += "</insert>";
+        return xmlRequest.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The path NotificationService takes: straight into a pooled buffer, with a reused writer.
+     */
+    @Benchmark
+    public int writeToPooledBuffer() {
+        PooledBuffer buffer = PooledBuffer.obtain();
+        mNotification.writeTo(mXmlWriter.setOutput(buffer));
+        int size = buffer.size();
+        buffer.recycle();
+        return size;
+    }
+
+    /**
+     * The path for watches that support the TLV format.
+     */
+    @Benchmark
+    public int writeTlvToPooledBuffer() {
+        PooledBuffer buffer = PooledBuffer.obtain();
+        mNotification.writeTlvTo(buffer);
+        int size = buffer.size();
+        buffer.recycle();
+        return size;
+    }
+
+    /**
+     * The path for watches that support compressed notifications.
+     */
+    @Benchmark
+    public int writeAndDeflate() {
+        PooledBuffer buffer = PooledBuffer.obtain();
+        mNotification.writeTo(buffer);
+        PooledBuffer frame = mDeflater.deflate(buffer);
+        if (frame != null) {
+            buffer.recycle();
+            buffer = frame;
+        }
+        int size = buffer.size();
+        buffer.recycle();
+        return size;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * AsteroidOSSync
+ * Copyright (c) 2023 AsteroidOS
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.asteroidos.sync.bench;
+
+import org.asteroidos.sync.utils.WireFormat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Calendar;
+import java.util.Random;
+
+/**
+ * Packing of a five day forecast and of the current time, as WeatherService and TimeService send
+ * them.
+ */
+@State(Scope.Thread)
+public class WireFormatBenchmark {
+    // OpenWeatherMap returns a data point every three hours for five days.
+    private static final int FORECAST_POINTS = 40;
+
+    // The forecast API returns strings, which WeatherService parses while packing.
+    private final String[] mTimestamps = new String[FORECAST_POINTS];
+    private final String[] mWeatherIds = new String[FORECAST_POINTS];
+    private final String[] mTemperatures = new String[FORECAST_POINTS];
+    private WireFormat.ForecastSource mForecast;
+    private final byte[] mIds = new byte[2 * WireFormat.FORECAST_DAYS];
+    private final byte[] mMinTemps = new byte[2 * WireFormat.FORECAST_DAYS];
+    private final byte[] mMaxTemps = new byte[2 * WireFormat.FORECAST_DAYS];
+    private Calendar mCalendar;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        long start = 1684065600L;
+        for (int i = 0; i < FORECAST_POINTS; i++) {
+            mTimestamps[i] = String.valueOf(start + i * 3 * 3600L);
+            mWeatherIds[i] = String.valueOf(800 + random.nextInt(5));
+            mTemperatures[i] = String.valueOf(270 + random.nextFloat() * 30);
+        }
+        mForecast = new WireFormat.ForecastSource() {
+            @Override
+            public int size() {
+                return FORECAST_POINTS;
+            }
+
+            @Override
+            public long getTimestamp(int index) {
+                return Long.parseLong(mTimestamps[index]);
+            }
+
+            @Override
+            public short getWeatherId(int index) {
+                return Short.parseShort(mWeatherIds[index]);
+            }
+
+            @Override
+            public float getTemperature(int index) {
+                return Float.parseFloat(mTemperatures[index]);
+            }
+        };
+        mCalendar = Calendar.getInstance();
+    }
+
+    @Benchmark
+    public void packForecast(Blackhole blackhole) {
+        WireFormat.packForecast(mForecast, mIds, mMinTemps, mMaxTemps);
+        blackhole.consume(mIds);
+        blackhole.consume(mMinTemps);
+        blackhole.consume(mMaxTemps);
+    }
+
+    /**
+     * As TimeService calls it, with a new Calendar for every update.
+     */
+    @Benchmark
+    public byte[] packTime() {
+        return WireFormat.packTime(Calendar.getInstance());
+    }
+
+    /**
+     * The encoding alone, without creating the Calendar.
+     */
+    @Benchmark
+    public byte[] packTimeReusedCalendar() {
+        return WireFormat.packTime(mCalendar);
+    }
+}
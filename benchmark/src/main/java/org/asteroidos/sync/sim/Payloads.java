@@ -0,0 +1,138 @@
+/*
+ * AsteroidOSSync
+ * Copyright (c) 2023 AsteroidOS
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.asteroidos.sync.sim;
+
+import org.asteroidos.sync.dataobjects.Notification;
+import org.asteroidos.sync.utils.NotificationDeflater;
+import org.asteroidos.sync.utils.PooledBuffer;
+import org.asteroidos.sync.utils.WireFormat;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Calendar;
+import java.util.Random;
+
+/**
+ * Builds the payloads the services of the app send, in the format the watch expects.
+ */
+public class Payloads {
+    private static final String[] WORDS = {"the", "watch", "is", "ringing", "meeting", "tomorrow",
+            "at", "noon", "please", "bring", "coffee", "😀", "ça", "va", "grüße", "東京"};
+
+    private final Random mRandom;
+
+    public Payloads(long seed) {
+        mRandom = new Random(seed);
+    }
+
+    /**
+     * @return a chat-like text of about the given number of characters
+     */
+    public final String text(int length) {
+        StringBuilder sb = new StringBuilder(length + 16);
+        while (sb.length() < length) {
+            if (sb.length() > 0)
+                sb.append(mRandom.nextInt(8) == 0 ? '\n' : ' ');
+            sb.append(WORDS[mRandom.nextInt(WORDS.length)]);
+        }
+        return sb.toString();
+    }
+
+    public final Notification notification(int id, int bodyLength) {
+        return new Notification(Notification.MsgType.POSTED, "org.example.chat", id, "Chat",
+                "ios-chatbubbles", text(24), text(bodyLength), "normal");
+    }
+
+    /**
+     * @return the notification encoded like NotificationService does
+     */
+    public static PooledBuffer encode(Notification notification) {
+        PooledBuffer buffer = PooledBuffer.obtain();
+        notification.writeTo(buffer);
+        return buffer;
+    }
+
+    /**
+     * @return the notification encoded like NotificationService does for watches that support TLV
+     */
+    public static PooledBuffer encodeTlv(Notification notification) {
+        PooledBuffer buffer = PooledBuffer.obtain();
+        notification.writeTlvTo(buffer);
+        return buffer;
+    }
+
+    /**
+     * @return the encoded notification compressed like NotificationService does for watches that
+     * support it, the buffer is recycled if the compressed frame is returned instead
+     */
+    public static PooledBuffer deflate(NotificationDeflater deflater, PooledBuffer buffer) {
+        PooledBuffer frame = deflater.deflate(buffer);
+        if (frame == null)
+            return buffer;
+        buffer.recycle();
+        return frame;
+    }
+
+    /**
+     * @return a media title, album or artist as MediaService sends them
+     */
+    public static byte[] mediaString(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the five values of a weather forecast, as big endian 16 bit values
+     */
+    public static byte[] weatherValues(short[] values) {
+        byte[] data = new byte[10];
+        for (int i = 0; i < 5; i++) {
+            data[2 * i] = (byte) (values[i] >> 8);
+            data[2 * i + 1] = (byte) values[i];
+        }
+        return data;
+    }
+
+    /**
+     * @return the time as TimeService sends it: years since 1900, month, day, hour, minute, second
+     */
+    public static byte[] time(int year, int month, int day, int hour, int minute, int second) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.set(year, month, day, hour, minute, second);
+        return WireFormat.packTime(calendar);
+    }
+
+    /**
+     * @return the notifications the watch sends for a screenshot: its size as a little endian
+     * 32 bit value, followed by the image in chunks of at most maxChunkLength bytes
+     */
+    public static byte[][] screenshot(byte[] image, int maxChunkLength) {
+        int chunks = (image.length + maxChunkLength - 1) / maxChunkLength;
+        byte[][] notifications = new byte[chunks + 1][];
+        notifications[0] = new byte[]{(byte) image.length, (byte) (image.length >> 8),
+                (byte) (image.length >> 16), (byte) (image.length >> 24)};
+        for (int i = 0; i < chunks; i++) {
+            int offset = i * maxChunkLength;
+            int length = Math.min(maxChunkLength, image.length - offset);
+            byte[] chunk = new byte[length];
+            System.arraycopy(image, offset, chunk, 0, length);
+            notifications[i + 1] = chunk;
+        }
+        return notifications;
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * AsteroidOSSync
+ * Copyright (c) 2023 AsteroidOS
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.asteroidos.sync.sim;
+
+import java.util.Random;
+
+/**
+ * A model of the BLE link between the phone and the watch, running on a virtual clock.
+ *
+ * Every chunk occupies the link for its length divided by the throughput. An acknowledged write
+ * additionally waits for the write response, which costs the configured latency. A lost packet
+ * is retransmitted by the link layer, so loss does not drop data but costs another latency and
+ * another transmission of the chunk, just like on a real link.
+ */
+public class SimulatedLink {
+    public static final int DEFAULT_MTU = 517;
+    // Two connection intervals of 7.5 ms, the fastest Android allows.
+    public static final long DEFAULT_LATENCY_NANOS = 15000000L;
+    // A realistic goodput for a 2M PHY link with data length extension.
+    public static final long DEFAULT_THROUGHPUT = 100 * 1024;
+
+    private int mMtu = DEFAULT_MTU;
+    private long mLatencyNanos = DEFAULT_LATENCY_NANOS;
+    private long mThroughput = DEFAULT_THROUGHPUT;
+    private double mLoss = 0;
+    private final Random mRandom;
+
+    private long mNow = 0;
+    private long mChunks = 0;
+    private long mBytes = 0;
+    private long mRetransmissions = 0;
+
+    public SimulatedLink(long seed) {
+        mRandom = new Random(seed);
+    }
+
+    public final SimulatedLink setMtu(int mtu) {
+        if (mtu < 23)
+            throw new IllegalArgumentException("The ATT MTU is at least 23: " + mtu);
+        mMtu = mtu;
+        return this;
+    }
+
+    public final SimulatedLink setLatency(long nanos) {
+        mLatencyNanos = nanos;
+        return this;
+    }
+
+    /**
+     * @param bytesPerSecond the rate at which the link carries payload
+     */
+    public final SimulatedLink setThroughput(long bytesPerSecond) {
+        if (bytesPerSecond <= 0)
+            throw new IllegalArgumentException("Throughput must be positive: " + bytesPerSecond);
+        mThroughput = bytesPerSecond;
+        return this;
+    }
+
+    /**
+     * @param loss the probability that a packet has to be retransmitted, between 0 and 1
+     */
+    public final SimulatedLink setLoss(double loss) {
+        if (loss < 0 || loss >= 1)
+            throw new IllegalArgumentException("Loss must be in [0, 1): " + loss);
+        mLoss = loss;
+        return this;
+    }
+
+    public final int getMtu() {
+        return mMtu;
+    }
+
+    /**
+     * @return the largest chunk a write can carry, the same value the BLE library passes to the splitter
+     */
+    public final int getMaxChunkLength() {
+        return mMtu - 3;
+    }
+
+    /**
+     * Transmits a chunk and advances the clock until it was delivered.
+     *
+     * @param acknowledged whether the sender waits for a write response
+     */
+    public final void transmit(int length, boolean acknowledged) {
+        final long airtime = length * 1000000000L / mThroughput;
+        long cost = airtime;
+        if (acknowledged)
+            cost += mLatencyNanos;
+        while (mLoss > 0 && mRandom.nextDouble() < mLoss) {
+            cost += mLatencyNanos + airtime;
+            mRetransmissions++;
+        }
+        mNow += cost;
+        mChunks++;
+        mBytes += length;
+    }
+
+    public final void advanceTo(long nanos) {
+        mNow = Math.max(mNow, nanos);
+    }
+
+    /**
+     * @return the virtual time in nanoseconds
+     */
+    public final long now() {
+        return mNow;
+    }
+
+    public final long getChunks() {
+        return mChunks;
+    }
+
+    public final long getBytes() {
+        return mBytes;
+    }
+
+    public final long getRetransmissions() {
+        return mRetransmissions;
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * AsteroidOSSync
+ * Copyright (c) 2023 AsteroidOS
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.asteroidos.sync.sim;
+
+import org.asteroidos.sync.connectivity.IConnectivityService;
+import org.asteroidos.sync.utils.AsteroidUUIDS;
+
+import java.util.HashMap;
+import java.util.UUID;
+
+/**
+ * Stands in for one of the services of the app on the simulated watch.
+ *
+ * The services of the app need an Android Context, so the simulation registers these descriptors
+ * with the same characteristics, write modes and priorities instead and sends the payloads the
+ * real services would send.
+ */
+public class SimulatedService implements IConnectivityService {
+    private final UUID mServiceUUID;
+    private final Priority mPriority;
+    private int mWeight = 1;
+    private final HashMap<UUID, Direction> mCharacteristics = new HashMap<>();
+    private final HashMap<UUID, WriteMode> mWriteModes = new HashMap<>();
+    private int mSyncs = 0;
+
+    public SimulatedService(UUID serviceUUID, Priority priority) {
+        mServiceUUID = serviceUUID;
+        mPriority = priority;
+    }
+
+    public final SimulatedService characteristic(UUID characteristic, Direction direction) {
+        mCharacteristics.put(characteristic, direction);
+        return this;
+    }
+
+    public final SimulatedService characteristic(UUID characteristic, Direction direction, WriteMode mode) {
+        mCharacteristics.put(characteristic, direction);
+        mWriteModes.put(characteristic, mode);
+        return this;
+    }
+
+    public final SimulatedService weight(int weight) {
+        mWeight = weight;
+        return this;
+    }
+
+    public static SimulatedService notification() {
+        return new SimulatedService(AsteroidUUIDS.NOTIFICATION_SERVICE_UUID, Priority.NOTIFICATION)
+                .characteristic(AsteroidUUIDS.NOTIFICATION_UPDATE_CHAR, Direction.TO_WATCH, WriteMode.BULK)
+                .characteristic(AsteroidUUIDS.NOTIFICATION_FEEDBACK_CHAR, Direction.FROM_WATCH);
+    }
+
+    public static SimulatedService media() {
+        return new SimulatedService(AsteroidUUIDS.MEDIA_SERVICE_UUID, Priority.MEDIA).weight(2)
+                .characteristic(AsteroidUUIDS.MEDIA_TITLE_CHAR, Direction.TO_WATCH, WriteMode.LAST_VALUE_WINS)
+                .characteristic(AsteroidUUIDS.MEDIA_ALBUM_CHAR, Direction.TO_WATCH, WriteMode.LAST_VALUE_WINS)
+                .characteristic(AsteroidUUIDS.MEDIA_ARTIST_CHAR, Direction.TO_WATCH, WriteMode.LAST_VALUE_WINS)
+                .characteristic(AsteroidUUIDS.MEDIA_PLAYING_CHAR, Direction.TO_WATCH, WriteMode.LAST_VALUE_WINS)
+                .characteristic(AsteroidUUIDS.MEDIA_COMMANDS_CHAR, Direction.FROM_WATCH)
+                .characteristic(AsteroidUUIDS.MEDIA_VOLUME_CHAR, Direction.TO_WATCH, WriteMode.LAST_VALUE_WINS);
+    }
+
+    public static SimulatedService weather() {
+        return new SimulatedService(AsteroidUUIDS.WEATHER_SERVICE_UUID, Priority.BACKGROUND)
+                .characteristic(AsteroidUUIDS.WEATHER_CITY_CHAR, Direction.TO_WATCH, WriteMode.LAST_VALUE_WINS)
+                .characteristic(AsteroidUUIDS.WEATHER_IDS_CHAR, Direction.TO_WATCH, WriteMode.LAST_VALUE_WINS)
+                .characteristic(AsteroidUUIDS.WEATHER_MIN_TEMPS_CHAR, Direction.TO_WATCH, WriteMode.LAST_VALUE_WINS)
+                .characteristic(AsteroidUUIDS.WEATHER_MAX_TEMPS_CHAR, Direction.TO_WATCH, WriteMode.LAST_VALUE_WINS);
+    }
+
+    public static SimulatedService screenshot() {
+        return new SimulatedService(AsteroidUUIDS.SCREENSHOT_SERVICE_UUID, Priority.MEDIA)
+                .characteristic(AsteroidUUIDS.SCREENSHOT_REQUEST, Direction.TO_WATCH)
+                .characteristic(AsteroidUUIDS.SCREENSHOT_CONTENT, Direction.FROM_WATCH);
+    }
+
+    public static SimulatedService time() {
+        return new SimulatedService(AsteroidUUIDS.TIME_SERVICE_UUID, Priority.BACKGROUND).weight(2)
+                .characteristic(AsteroidUUIDS.TIME_SET_CHAR, Direction.TO_WATCH, WriteMode.LAST_VALUE_WINS);
+    }
+
+    /**
+     * @return how often the service was synced
+     */
+    public final int getSyncs() {
+        return mSyncs;
+    }
+
+    @Override
+    public void sync() {
+        mSyncs++;
+    }
+
+    @Override
+    public void unsync() {
+    }
+
+    @Override
+    public final HashMap<UUID, Direction> getCharacteristicUUIDs() {
+        return new HashMap<>(mCharacteristics);
+    }
+
+    @Override
+    public final HashMap<UUID, WriteMode> getCharacteristicWriteModes() {
+        return new HashMap<>(mWriteModes);
+    }
+
+    @Override
+    public final Priority getPriority() {
+        return mPriority;
+    }
+
+    @Override
+    public final int getWeight() {
+        return mWeight;
+    }
+
+    @Override
+    public final UUID getServiceUUID() {
+        return mServiceUUID;
+    }
+}
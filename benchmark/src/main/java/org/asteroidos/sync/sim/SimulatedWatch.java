@@ -0,0 +1,312 @@
+/*
+ * AsteroidOSSync
+ * Copyright (c) 2023 AsteroidOS
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.asteroidos.sync.sim;
+
+import org.asteroidos.sync.asteroid.ChunkSplitter;
+import org.asteroidos.sync.asteroid.IAsteroidDevice;
+import org.asteroidos.sync.asteroid.PendingWrite;
+import org.asteroidos.sync.asteroid.TransportMetrics;
+import org.asteroidos.sync.asteroid.WriteScheduler;
+import org.asteroidos.sync.connectivity.IConnectivityService;
+import org.asteroidos.sync.connectivity.IServiceCallback;
+import org.asteroidos.sync.utils.PooledBuffer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.UUID;
+
+/**
+ * A watch that lives in memory and is connected over a {@link SimulatedLink}.
+ *
+ * Writes go through the same {@link WriteScheduler} and {@link ChunkSplitter} as on a phone. The
+ * watch reassembles the chunks of every write, so a test can check what arrived and in which
+ * order. Notifications from the watch are scripted on the virtual clock and handed to the
+ * callbacks the services registered. Nothing happens until {@link #runUntilIdle()} is called,
+ * which makes every run deterministic.
+ */
+public class SimulatedWatch implements IAsteroidDevice {
+    private final SimulatedLink mLink;
+    private final WriteScheduler mScheduler = new WriteScheduler();
+    private final TransportMetrics mMetrics = new TransportMetrics();
+    private final HashMap<UUID, IConnectivityService> mServices = new HashMap<>();
+    private final HashMap<UUID, IServiceCallback> mCallbacks = new HashMap<>();
+    private final HashMap<UUID, IServiceCallback> mReadCallbacks = new HashMap<>();
+    private final HashMap<UUID, byte[]> mValues = new HashMap<>();
+    private final HashSet<UUID> mBulkCharacteristics = new HashSet<>();
+    private final HashSet<IConnectivityService> mBulkServices = new HashSet<>();
+    private final HashMap<UUID, List<byte[]>> mReceived = new HashMap<>();
+    private final ArrayList<UUID> mReceivedOrder = new ArrayList<>();
+    private final PriorityQueue<ScriptedNotification> mScript = new PriorityQueue<>();
+    private boolean mWriteWithoutResponse = true;
+    private long mScriptSeq = 0;
+
+    public SimulatedWatch(SimulatedLink link) {
+        mLink = link;
+    }
+
+    /**
+     * @param supported whether the watch accepts writes without response on BULK characteristics
+     */
+    public final SimulatedWatch setWriteWithoutResponse(boolean supported) {
+        mWriteWithoutResponse = supported;
+        return this;
+    }
+
+    /**
+     * Sends a notification from the watch once the virtual clock reaches the given time.
+     */
+    public final void script(long atNanos, UUID characteristic, byte[] data) {
+        mScript.add(new ScriptedNotification(atNanos, mScriptSeq++, characteristic, data));
+    }
+
+    /**
+     * Sends the writes and scripted notifications until there is nothing left to do. Callbacks
+     * may send new writes, those are sent as well.
+     */
+    public final void runUntilIdle() {
+        while (true) {
+            deliverDueNotifications();
+            PendingWrite write = mScheduler.poll();
+            if (write != null) {
+                transmit(write);
+                continue;
+            }
+            ScriptedNotification next = mScript.peek();
+            if (next == null)
+                return;
+            mLink.advanceTo(next.time);
+        }
+    }
+
+    /**
+     * @return the messages the watch received on the characteristic, in the order they arrived
+     */
+    public final List<byte[]> getReceived(UUID characteristic) {
+        List<byte[]> received = mReceived.get(characteristic);
+        return received == null ? new ArrayList<>() : received;
+    }
+
+    /**
+     * @return the characteristic of every received message, in the order they arrived
+     */
+    public final List<UUID> getReceivedOrder() {
+        return mReceivedOrder;
+    }
+
+    public final SimulatedLink getLink() {
+        return mLink;
+    }
+
+    public final WriteScheduler getScheduler() {
+        return mScheduler;
+    }
+
+    /**
+     * Sets the value the watch returns when a characteristic is read.
+     */
+    public final void setValue(UUID characteristic, byte[] value) {
+        mValues.put(characteristic, value);
+    }
+
+    /**
+     * Calls the read callbacks like the phone does once it connected.
+     */
+    public final void readCharacteristics() {
+        mReadCallbacks.forEach((characteristic, callback) -> callback.call(mValues.get(characteristic)));
+    }
+
+    public final boolean isBulkTransfer() {
+        return !mBulkServices.isEmpty();
+    }
+
+    private void transmit(PendingWrite write) {
+        // The BLE library copies the value before splitting it, the splitter sees exactly the
+        // bytes of the write.
+        final byte[] value = Arrays.copyOf(write.data, write.length);
+        final boolean acknowledged = !(mWriteWithoutResponse && mBulkCharacteristics.contains(write.characteristic));
+        final ChunkSplitter splitter = new ChunkSplitter();
+        // The watch appends the chunks until the write is complete.
+        final byte[] message = new byte[value.length];
+        int received = 0;
+        byte[] chunk;
+        for (int i = 0; (chunk = splitter.chunk(value, i, mLink.getMaxChunkLength())) != null; i++) {
+            mLink.transmit(chunk.length, acknowledged);
+            System.arraycopy(chunk, 0, message, received, chunk.length);
+            received += chunk.length;
+        }
+        mMetrics.recordWrite(write.characteristic, write.length, splitter.getChunkCount(),
+                mLink.now() - ((SimulatedWrite) write).virtualEnqueueTime, true);
+        splitter.recycle();
+        write.recycle();
+
+        List<byte[]> messages = mReceived.get(write.characteristic);
+        if (messages == null) {
+            messages = new ArrayList<>();
+            mReceived.put(write.characteristic, messages);
+        }
+        messages.add(message);
+        mReceivedOrder.add(write.characteristic);
+    }
+
+    private void deliverDueNotifications() {
+        ScriptedNotification next;
+        while ((next = mScript.peek()) != null && next.time <= mLink.now()) {
+            mScript.poll();
+            mLink.transmit(next.data.length, false);
+            IServiceCallback callback = mCallbacks.get(next.characteristic);
+            if (callback == null)
+                continue;
+            final long start = System.nanoTime();
+            boolean success = false;
+            try {
+                callback.call(next.data);
+                success = true;
+            } finally {
+                mMetrics.recordNotification(next.characteristic, next.data.length, System.nanoTime() - start, success);
+            }
+        }
+    }
+
+    @Override
+    public final ConnectionState getConnectionState() {
+        return ConnectionState.STATUS_CONNECTED;
+    }
+
+    @Override
+    public final void send(UUID characteristic, byte[] data, IConnectivityService service) {
+        send(characteristic, data, service, service.getPriority());
+    }
+
+    @Override
+    public final void send(UUID characteristic, byte[] data, IConnectivityService service, IConnectivityService.Priority priority) {
+        mScheduler.enqueue(new SimulatedWrite(characteristic, data, service, priority, mLink.now()));
+    }
+
+    @Override
+    public final void send(UUID characteristic, PooledBuffer data, IConnectivityService service, IConnectivityService.Priority priority) {
+        send(characteristic, data, service, priority, null, PendingWrite.DEFAULT_TTL_MS);
+    }
+
+    @Override
+    public final void send(UUID characteristic, PooledBuffer data, IConnectivityService service, IConnectivityService.Priority priority,
+                           String dedupeKey, long ttl) {
+        // The simulated watch never disconnects, the dedupe key and TTL only matter for the outbox.
+        mScheduler.enqueue(new SimulatedWrite(characteristic, data, service, priority, mLink.now()));
+    }
+
+    @Override
+    public final void setBulkTransfer(IConnectivityService service, boolean bulk) {
+        if (bulk)
+            mBulkServices.add(service);
+        else
+            mBulkServices.remove(service);
+    }
+
+    @Override
+    public final void registerBleService(IConnectivityService service) {
+        mServices.put(service.getServiceUUID(), service);
+        mScheduler.setWeight(service, service.getWeight());
+        service.getCharacteristicWriteModes().forEach((characteristic, mode) -> {
+            mScheduler.setWriteMode(characteristic, mode);
+            if (mode == IConnectivityService.WriteMode.BULK)
+                mBulkCharacteristics.add(characteristic);
+        });
+    }
+
+    @Override
+    public final void unregisterBleService(UUID serviceUUID) {
+        IConnectivityService service = mServices.remove(serviceUUID);
+        if (service != null)
+            mBulkCharacteristics.removeAll(service.getCharacteristicWriteModes().keySet());
+    }
+
+    @Override
+    public final void registerCallback(UUID characteristicUUID, IServiceCallback callback) {
+        mCallbacks.putIfAbsent(characteristicUUID, callback);
+    }
+
+    @Override
+    public final void unregisterCallback(UUID characteristicUUID) {
+        mCallbacks.remove(characteristicUUID);
+    }
+
+    @Override
+    public final void registerReadCallback(UUID characteristicUUID, IServiceCallback callback) {
+        mReadCallbacks.putIfAbsent(characteristicUUID, callback);
+    }
+
+    @Override
+    public final TransportMetrics getTransportMetrics() {
+        return mMetrics;
+    }
+
+    @Override
+    public final IConnectivityService getServiceByUUID(UUID uuid) {
+        return mServices.get(uuid);
+    }
+
+    @Override
+    public final HashMap<UUID, IConnectivityService> getServices() {
+        return mServices;
+    }
+
+    /**
+     * A write that remembers when it was enqueued on the virtual clock.
+     */
+    private static class SimulatedWrite extends PendingWrite {
+        final long virtualEnqueueTime;
+
+        SimulatedWrite(UUID characteristic, byte[] data, IConnectivityService service,
+                       IConnectivityService.Priority priority, long now) {
+            super(characteristic, data, service, priority);
+            virtualEnqueueTime = now;
+        }
+
+        SimulatedWrite(UUID characteristic, PooledBuffer data, IConnectivityService service,
+                       IConnectivityService.Priority priority, long now) {
+            super(characteristic, data, service, priority, null, DEFAULT_TTL_MS);
+            virtualEnqueueTime = now;
+        }
+    }
+
+    private static class ScriptedNotification implements Comparable<ScriptedNotification> {
+        final long time;
+        final long seq;
+        final UUID characteristic;
+        final byte[] data;
+
+        ScriptedNotification(long time, long seq, UUID characteristic, byte[] data) {
+            this.time = time;
+            this.seq = seq;
+            this.characteristic = characteristic;
+            this.data = data;
+        }
+
+        @Override
+        public int compareTo(ScriptedNotification other) {
+            int result = Long.compare(time, other.time);
+            return result != 0 ? result : Long.compare(seq, other.seq);
+        }
+    }
+}
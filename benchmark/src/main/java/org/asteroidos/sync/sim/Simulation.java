@@ -0,0 +1,203 @@
+/*
+ * AsteroidOSSync
+ * Copyright (c) 2023 AsteroidOS
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.asteroidos.sync.sim;
+
+import org.asteroidos.sync.connectivity.IConnectivityService;
+import org.asteroidos.sync.dataobjects.Notification;
+import org.asteroidos.sync.utils.AsteroidUUIDS;
+import org.asteroidos.sync.utils.NotificationDeflater;
+import org.asteroidos.sync.utils.PooledBuffer;
+import org.asteroidos.sync.utils.XmlWriter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Runs a few scripted workloads against the simulated watch and prints what the link did.
+ *
+ * Usage: Simulation [mtu] [loss]
+ */
+public class Simulation {
+    public static void main(String[] args) {
+        final int mtu = args.length > 0 ? Integer.parseInt(args[0]) : SimulatedLink.DEFAULT_MTU;
+        final double loss = args.length > 1 ? Double.parseDouble(args[1]) : 0;
+
+        System.out.println("MTU " + mtu + ", loss " + loss);
+        mixed(mtu, loss, 0);
+        mixed(mtu, loss, NotificationDeflater.CAPABILITY_DEFLATE);
+        mixed(mtu, loss, Notification.CAPABILITY_TLV);
+        mixed(mtu, loss, Notification.CAPABILITY_TLV | NotificationDeflater.CAPABILITY_DEFLATE);
+        progress(mtu, loss, false);
+        progress(mtu, loss, true);
+        refresh(mtu, loss, false);
+        refresh(mtu, loss, true);
+        screenshot(mtu, loss);
+    }
+
+    /**
+     * The refresh after a reconnect, with thirty active notifications.
+     *
+     * @param batch whether the watch understands batches, which carry all of them in one message
+     */
+    static void refresh(int mtu, double loss, boolean batch) {
+        SimulatedWatch watch = new SimulatedWatch(new SimulatedLink(7).setMtu(mtu).setLoss(loss));
+        SimulatedService notifications = SimulatedService.notification();
+        watch.registerBleService(notifications);
+
+        Payloads payloads = new Payloads(8);
+        Random random = new Random(9);
+        List<Notification> active = new ArrayList<>();
+        for (int i = 0; i < 30; i++)
+            active.add(payloads.notification(i, 20 + random.nextInt(300)));
+        if (batch) {
+            PooledBuffer buffer = PooledBuffer.obtain();
+            Notification.writeBatchTo(active, new XmlWriter(buffer));
+            watch.send(AsteroidUUIDS.NOTIFICATION_UPDATE_CHAR, buffer, notifications, IConnectivityService.Priority.NOTIFICATION);
+        } else {
+            for (Notification notification : active)
+                watch.send(AsteroidUUIDS.NOTIFICATION_UPDATE_CHAR, Payloads.encode(notification), notifications,
+                        IConnectivityService.Priority.NOTIFICATION);
+        }
+        watch.runUntilIdle();
+        report("Refresh, " + (batch ? "batch" : "one by one"), watch);
+    }
+
+    /**
+     * A download that posts its progress a hundred times under the same id.
+     *
+     * @param updates whether the watch understands updates, which only carry the changed fields
+     */
+    static void progress(int mtu, double loss, boolean updates) {
+        SimulatedWatch watch = new SimulatedWatch(new SimulatedLink(6).setMtu(mtu).setLoss(loss));
+        SimulatedService notifications = SimulatedService.notification();
+        watch.registerBleService(notifications);
+
+        Notification previous = null;
+        for (int percent = 0; percent < 100; percent++) {
+            Notification notification = new Notification(Notification.MsgType.POSTED,
+                    "com.android.providers.downloads", 7, "Downloads", "ios-download",
+                    "asteroidos-nightly.img", percent + "% of 512 MB, " + (100 - percent) / 10 + " min left", "none");
+            Notification message = updates && previous != null ? notification.diff(previous) : notification;
+            watch.send(AsteroidUUIDS.NOTIFICATION_UPDATE_CHAR, Payloads.encode(message), notifications,
+                    IConnectivityService.Priority.NOTIFICATION);
+            previous = notification;
+        }
+        watch.runUntilIdle();
+        report("Progress, " + (updates ? "updates" : "full inserts"), watch);
+    }
+
+    /**
+     * A burst of chat notifications while the media player skips through tracks, with a weather
+     * and time update and an incoming call in the middle.
+     *
+     * @param capabilities the notification capabilities of the watch, see NotificationService
+     */
+    static void mixed(int mtu, double loss, int capabilities) {
+        SimulatedWatch watch = new SimulatedWatch(new SimulatedLink(1).setMtu(mtu).setLoss(loss));
+        SimulatedService notifications = SimulatedService.notification();
+        SimulatedService media = SimulatedService.media();
+        SimulatedService weather = SimulatedService.weather();
+        SimulatedService time = SimulatedService.time();
+        watch.registerBleService(notifications);
+        watch.registerBleService(media);
+        watch.registerBleService(weather);
+        watch.registerBleService(time);
+
+        Payloads payloads = new Payloads(2);
+        Random random = new Random(3);
+        boolean tlv = (capabilities & Notification.CAPABILITY_TLV) != 0;
+        NotificationDeflater deflater = (capabilities & NotificationDeflater.CAPABILITY_DEFLATE) != 0
+                ? new NotificationDeflater() : null;
+        byte[] alert = null;
+        for (int i = 0; i < 50; i++) {
+            watch.send(AsteroidUUIDS.NOTIFICATION_UPDATE_CHAR,
+                    encode(watch, tlv, deflater, payloads.notification(i, 40 + random.nextInt(4000))),
+                    notifications, IConnectivityService.Priority.NOTIFICATION);
+            if (i % 3 == 0)
+                watch.send(AsteroidUUIDS.MEDIA_TITLE_CHAR, Payloads.mediaString(payloads.text(30)), media);
+            if (i == 25) {
+                PooledBuffer buffer = encode(watch, tlv, deflater, payloads.notification(1000, 20));
+                alert = buffer.toByteArray();
+                watch.send(AsteroidUUIDS.NOTIFICATION_UPDATE_CHAR, buffer, notifications, IConnectivityService.Priority.ALERT);
+            }
+        }
+        watch.send(AsteroidUUIDS.WEATHER_CITY_CHAR, Payloads.mediaString("Berlin"), weather);
+        watch.send(AsteroidUUIDS.WEATHER_IDS_CHAR, Payloads.weatherValues(new short[]{800, 801, 500, 500, 800}), weather);
+        watch.send(AsteroidUUIDS.WEATHER_MIN_TEMPS_CHAR, Payloads.weatherValues(new short[]{280, 281, 279, 277, 280}), weather);
+        watch.send(AsteroidUUIDS.WEATHER_MAX_TEMPS_CHAR, Payloads.weatherValues(new short[]{290, 292, 285, 284, 291}), weather);
+        watch.send(AsteroidUUIDS.TIME_SET_CHAR, Payloads.time(2023, 5, 14, 12, 0, 0), time);
+
+        watch.runUntilIdle();
+        report("Mixed, " + (tlv ? "TLV" : "XML") + (deflater != null ? " and DEFLATE" : ""), watch);
+        List<byte[]> received = watch.getReceived(AsteroidUUIDS.NOTIFICATION_UPDATE_CHAR);
+        int position = 0;
+        while (position < received.size() && !Arrays.equals(received.get(position), alert))
+            position++;
+        System.out.println("Alert arrived as notification " + (position + 1) + " of " + received.size()
+                + ", " + watch.getScheduler().getCoalescedCount() + " media updates coalesced");
+    }
+
+    private static PooledBuffer encode(SimulatedWatch watch, boolean tlv, NotificationDeflater deflater,
+                                       Notification notification) {
+        PooledBuffer buffer = tlv ? Payloads.encodeTlv(notification) : Payloads.encode(notification);
+        if (deflater == null)
+            return buffer;
+        final int rawLength = buffer.size();
+        buffer = Payloads.deflate(deflater, buffer);
+        watch.getTransportMetrics().recordEncoding(AsteroidUUIDS.NOTIFICATION_UPDATE_CHAR, rawLength, buffer.size());
+        return buffer;
+    }
+
+    /**
+     * A screenshot request followed by the watch streaming a 60 kB image.
+     */
+    static void screenshot(int mtu, double loss) {
+        SimulatedWatch watch = new SimulatedWatch(new SimulatedLink(4).setMtu(mtu).setLoss(loss));
+        SimulatedService screenshot = SimulatedService.screenshot();
+        watch.registerBleService(screenshot);
+
+        // Counts the image bytes like ScreenshotService, the first notification carries the size.
+        final int[] received = {-4};
+        watch.registerCallback(AsteroidUUIDS.SCREENSHOT_CONTENT, data -> received[0] += data.length);
+        watch.send(AsteroidUUIDS.SCREENSHOT_REQUEST, new byte[1], screenshot);
+        watch.runUntilIdle();
+
+        byte[] image = new byte[60 * 1024];
+        new Random(5).nextBytes(image);
+        final long start = watch.getLink().now();
+        for (byte[] notification : Payloads.screenshot(image, watch.getLink().getMaxChunkLength()))
+            watch.script(start, AsteroidUUIDS.SCREENSHOT_CONTENT, notification);
+        watch.runUntilIdle();
+
+        report("Screenshot", watch);
+        final long elapsed = watch.getLink().now() - start;
+        System.out.println("Downloaded " + received[0] + " bytes in " + elapsed / 1000000 + " ms, "
+                + (elapsed == 0 ? 0 : image.length * 1000000000L / elapsed) + " bytes/s");
+    }
+
+    private static void report(String name, SimulatedWatch watch) {
+        SimulatedLink link = watch.getLink();
+        System.out.println("\n== " + name + ": " + link.now() / 1000000 + " ms, " + link.getChunks() + " packets, "
+                + link.getBytes() + " bytes, " + link.getRetransmissions() + " retransmissions");
+        System.out.print(watch.getTransportMetrics().dump(watch.getScheduler().getQueueDepths()));
+    }
+}
@@ -1 +1,2 @@
 include(":app")
+include(":benchmark")